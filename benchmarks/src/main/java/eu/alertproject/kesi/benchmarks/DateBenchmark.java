@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.benchmarks;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.alertproject.kesi.database.Database;
+
+/**
+ * Measures the conversion of dates used when reading rows from the
+ * databases and when storing the date of the last event sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateBenchmark {
+    private Date date;
+    private Timestamp timestamp;
+
+    @Setup
+    public void setUp() throws ParseException {
+        date = Database.stringToDate(Fixtures.DATE);
+        timestamp = new Timestamp(date.getTime());
+    }
+
+    @Benchmark
+    public String dateToString() {
+        return Database.dateToString(date);
+    }
+
+    @Benchmark
+    public String timestampToString() {
+        return Database.dateToString(timestamp);
+    }
+
+    @Benchmark
+    public Date stringToDate() throws ParseException {
+        return Database.stringToDate(Fixtures.DATE);
+    }
+
+}
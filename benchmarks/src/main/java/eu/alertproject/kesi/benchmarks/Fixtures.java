@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.benchmarks;
+
+import java.net.URI;
+
+import eu.alertproject.kesi.model.Activity;
+import eu.alertproject.kesi.model.Comment;
+import eu.alertproject.kesi.model.Commit;
+import eu.alertproject.kesi.model.ComputerSystem;
+import eu.alertproject.kesi.model.File;
+import eu.alertproject.kesi.model.Function;
+import eu.alertproject.kesi.model.Issue;
+import eu.alertproject.kesi.model.IssueTracker;
+import eu.alertproject.kesi.model.Module;
+import eu.alertproject.kesi.model.Person;
+import eu.alertproject.kesi.model.Product;
+
+/**
+ * Builds the entities used by the benchmarks. Sizes and contents try to
+ * resemble the data extracted by CVSAnalY and Bicho.
+ */
+public final class Fixtures {
+    public static final String DATE = "2013-03-21 17:42:7";
+
+    private static final int MODULES_PER_FILE = 3;
+    private static final int FUNCTIONS_PER_MODULE = 5;
+    private static final int ACTIVITIES_PER_COMMENT = 2;
+
+    private static final String LOG_MESSAGE = "Fix memory leak when the "
+            + "repository is reloaded.\n\nThe references to the old "
+            + "entries were kept on the cache & never released <see #42>.";
+
+    private static final String COMMENT_TEXT = "I can reproduce it with "
+            + "the latest version. Steps:\n 1. Open the project\n 2. "
+            + "Reload the repository twice\n\nThe memory used grows "
+            + "after each reload (> 200MB). Stack trace attached.";
+
+    private Fixtures() {
+    }
+
+    public static Commit createCommit(int numFiles) {
+        Person author = createPerson(0);
+        Person committer = createPerson(1);
+        Commit commit;
+
+        commit = new Commit(LOG_MESSAGE, DATE,
+                "3f786850e387550fdab836ed7e6dc881de23001b", author,
+                committer, 1234);
+        commit.setRepositoryURI(URI
+                .create("git://git.example.org/project.git"));
+
+        for (int i = 0; i < numFiles; i++) {
+            commit.addFile(createFile(i));
+        }
+
+        return commit;
+    }
+
+    public static Issue createIssue(int numComments) {
+        Issue issue = new Issue("1729");
+
+        issue.setIssueTracker(new IssueTracker("1", URI
+                .create("https://bugs.example.org/"), "bugzilla"));
+        issue.setIssueURL(URI
+                .create("https://bugs.example.org/show_bug.cgi?id=1729"));
+        issue.setSummary("Memory leak when the repository is reloaded");
+        issue.setDescription(COMMENT_TEXT);
+        issue.setReporter(createPerson(0));
+        issue.setAssignedTo(createPerson(1));
+        issue.setSeverity("major");
+        issue.setPriority("P2");
+        issue.setState("NEW");
+        issue.setResolution("");
+        issue.setProduct(new Product("project", "core", "2.1"));
+        issue.setComputerSystem(new ComputerSystem("x86_64", "Linux"));
+        issue.setIssueNew(DATE);
+
+        for (int i = 0; i < numComments; i++) {
+            Person person = createPerson(i % 20);
+
+            issue.addComment(new Comment(COMMENT_TEXT, person, DATE));
+
+            for (int j = 0; j < ACTIVITIES_PER_COMMENT; j++) {
+                issue.addActivity(new Activity(person.getEmail(), DATE,
+                        "status", "NEW", "ASSIGNED"));
+            }
+        }
+
+        return issue;
+    }
+
+    private static File createFile(int n) {
+        File file = new File("src/main/java/org/example/project/module"
+                + (n % 100) + "/Class" + n + ".java");
+
+        file.setSimpleAction("M");
+        file.setBranch("master");
+
+        for (int i = 0; i < MODULES_PER_FILE; i++) {
+            Module module = new Module("Class" + n + "$Inner" + i, i * 100,
+                    i * 100 + 99);
+
+            for (int j = 0; j < FUNCTIONS_PER_MODULE; j++) {
+                module.addFunction(new Function("public void method" + j
+                        + "(String name, List<Integer> values)", i * 100 + j
+                        * 10, i * 100 + j * 10 + 9));
+            }
+
+            file.addModule(module);
+        }
+
+        return file;
+    }
+
+    private static Person createPerson(int n) {
+        return new Person("Developer " + n, "developer" + n
+                + "@example.org", "developer" + n);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.alertproject.kesi.events.Event;
+import eu.alertproject.kesi.model.Commit;
+import eu.alertproject.kesi.model.EntityMarshaller;
+import eu.alertproject.kesi.model.Issue;
+
+/**
+ * Measures the marshalling of commits and issues to XML and the
+ * assembly of the message envelope of the events. Both the indented
+ * and the compact XML outputs are measured (see publisher/compactXML).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class MarshallingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CommitState {
+        @Param({ "1", "50", "5000" })
+        public int files;
+
+        @Param({ "false", "true" })
+        public boolean compact;
+
+        public Commit commit;
+        public Event event;
+
+        @Setup
+        public void setUp() throws JAXBException {
+            EntityMarshaller.INSTANCE.setFormattedOutput(!compact);
+            commit = Fixtures.createCommit(files);
+            event = commit.toEvent();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IssueState {
+        @Param({ "100", "500" })
+        public int comments;
+
+        @Param({ "false", "true" })
+        public boolean compact;
+
+        public Issue issue;
+        public Event event;
+
+        @Setup
+        public void setUp() throws JAXBException {
+            EntityMarshaller.INSTANCE.setFormattedOutput(!compact);
+            issue = Fixtures.createIssue(comments);
+            event = issue.toEvent();
+        }
+    }
+
+    @Benchmark
+    public String commitToXML(CommitState state) throws JAXBException {
+        return state.commit.toXML();
+    }
+
+    @Benchmark
+    public String issueToXML(IssueState state) throws JAXBException {
+        return state.issue.toXML();
+    }
+
+    @Benchmark
+    public String commitToMessage(CommitState state) {
+        return state.event.toMessage("1");
+    }
+
+    @Benchmark
+    public String issueToMessage(IssueState state) {
+        return state.event.toMessage("1");
+    }
+
+}
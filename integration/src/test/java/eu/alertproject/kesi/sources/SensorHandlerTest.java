@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.sources;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.prefs.Preferences;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.icegreen.greenmail.store.StoredMessage;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+import eu.alertproject.kesi.KESI;
+import eu.alertproject.kesi.PreferencesManager;
+
+/**
+ * Runs the mail sensor against a local IMAP server. Messages are marked
+ * as seen once the sensor has handled them, so the tests wait for the
+ * flag on the server.
+ */
+public class SensorHandlerTest {
+    private static final String USER = "kesi@localhost";
+    private static final String PASSWORD = "kesi";
+
+    /* Long enough to tell IDLE from polling */
+    private static final int POLLING = 60000;
+
+    private static final long TIMEOUT = 5000;
+
+    private GreenMail server;
+    private GreenMailUser user;
+    private SensorHandler sensor;
+    private Preferences prefs;
+
+    @Before
+    public void setUp() throws Exception {
+        startServer(new ServerSetup(0, "localhost", ServerSetup.PROTOCOL_IMAP)
+                .dynamicPort());
+
+        prefs = Preferences.userNodeForPackage(KESI.class).node("sensor");
+        prefs.put(PreferencesManager.PREF_SENSOR_PROTOCOL, "imap");
+        prefs.put(PreferencesManager.PREF_SENSOR_HOST, "localhost");
+        prefs.putInt(PreferencesManager.PREF_SENSOR_PORT, server.getImap()
+                .getPort());
+        prefs.put(PreferencesManager.PREF_SENSOR_USERNAME, USER);
+        prefs.put(PreferencesManager.PREF_SENSOR_PASSWORD, PASSWORD);
+        prefs.putBoolean(PreferencesManager.PREF_SENSOR_IDLE, true);
+        prefs.putInt(PreferencesManager.PREF_SENSOR_POLL_INTERVAL, POLLING);
+        prefs.putInt(PreferencesManager.PREF_SENSOR_RECONNECT_DELAY, 100);
+        prefs.putInt(PreferencesManager.PREF_SENSOR_MAX_RECONNECT_DELAY, 500);
+        PreferencesManager.INSTANCE.setUpPreferences();
+
+        sensor = new SensorHandler();
+        sensor.setDaemon(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sensor.interrupt();
+        server.stop();
+        sensor.join(TIMEOUT);
+    }
+
+    @Test
+    public void testIdleHandlesMessagesWithoutPolling() throws Exception {
+        sensor.start();
+
+        /* Handled when the sensor connects */
+        assertHandled(deliver("[SCM] [git://git.example.com/one.git] one"));
+
+        /* Handled only if the sensor is waiting with IDLE */
+        assertHandled(deliver("[SCM] [git://git.example.com/two.git] two"));
+    }
+
+    @Test
+    public void testPollsWhenIdleIsDisabled() throws Exception {
+        prefs.putBoolean(PreferencesManager.PREF_SENSOR_IDLE, false);
+        prefs.putInt(PreferencesManager.PREF_SENSOR_POLL_INTERVAL, 200);
+        sensor.start();
+
+        assertHandled(deliver("[SCM] [git://git.example.com/one.git] one"));
+        assertHandled(deliver("[SCM] [git://git.example.com/two.git] two"));
+    }
+
+    @Test
+    public void testReconnectsWhenServerRestarts() throws Exception {
+        int port = server.getImap().getPort();
+
+        sensor.start();
+        assertHandled(deliver("[SCM] [git://git.example.com/one.git] one"));
+
+        server.stop();
+        startServer(new ServerSetup(port, "localhost",
+                ServerSetup.PROTOCOL_IMAP));
+
+        assertHandled(deliver("[SCM] [git://git.example.com/two.git] two"));
+    }
+
+    @Test
+    public void testIgnoresBugzillaMessagesWithoutHeaders() throws Exception {
+        sensor.start();
+
+        assertHandled(deliver("[Bug 1] No X-Bugzilla headers"));
+        assertTrue("Sensor stopped", sensor.isAlive());
+
+        assertHandled(deliver("[SCM] [git://git.example.com/one.git] one"));
+    }
+
+    private void startServer(ServerSetup setup) {
+        server = new GreenMail(setup);
+        server.start();
+        user = server.setUser(USER, USER, PASSWORD);
+    }
+
+    private int deliver(String subject) throws Exception {
+        MimeMessage message = new MimeMessage((Session) null);
+
+        message.setFrom(new InternetAddress("sender@localhost"));
+        message.setRecipients(Message.RecipientType.TO, USER);
+        message.setSubject(subject);
+        message.setText("Body");
+        user.deliver(message);
+
+        return server.getManagers().getImapHostManager().getInbox(user)
+                .getMessages().size();
+    }
+
+    /*
+     * Waits until the message with the given sequence number is
+     * marked as seen
+     */
+    private void assertHandled(int number) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (System.currentTimeMillis() < deadline) {
+            StoredMessage message = server.getManagers()
+                    .getImapHostManager().getInbox(user).getMessages()
+                    .get(number - 1);
+
+            if (message.isSet(Flags.Flag.SEEN)) {
+                return;
+            }
+
+            Thread.sleep(50);
+        }
+
+        throw new AssertionError("Message " + number + " not handled in "
+                + TIMEOUT + " ms");
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.sources;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.prefs.Preferences;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.alertproject.kesi.KESI;
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.extractors.ExtractionManager;
+
+/**
+ * Sends notifications to the webhook sensor listening on a local port
+ * and checks the responses. The extraction manager is started, so the
+ * extractors try to run the requested extractions and fail.
+ */
+public class WebhookSensorTest {
+    static final String SOURCE = "http://bugs.example.com/buglist.cgi?product=kesi";
+    static final String TOKEN = "secret";
+
+    private static final String FORM_TYPE = "application/x-www-form-urlencoded";
+    static final String TEXT_TYPE = "text/plain";
+
+    /* Larger than the bodies accepted by the sensor */
+    private static final int LARGE_BODY_SIZE = 16 * 1024;
+
+    private static WebhookSensor sensor;
+    private static String url;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        importSource();
+        ExtractionManager.INSTANCE.start();
+
+        sensor = new WebhookSensor("localhost", 0, TOKEN);
+        sensor.start();
+
+        url = "http://localhost:" + sensor.getPort() + WebhookSensor.PATH;
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        sensor.stop();
+    }
+
+    @Test
+    public void testAcceptsURIOnQuery() throws Exception {
+        assertEquals(202, post(url + "?uri=" + encode(SOURCE), null, "",
+                TOKEN));
+    }
+
+    @Test
+    public void testAcceptsURIOnForm() throws Exception {
+        assertEquals(202, post(url, FORM_TYPE, "uri=" + encode(SOURCE),
+                TOKEN));
+    }
+
+    @Test
+    public void testAcceptsURIOnBody() throws Exception {
+        /* The query string of the URI must not be parsed as a form */
+        assertEquals(202, post(url, TEXT_TYPE, SOURCE, TOKEN));
+    }
+
+    @Test
+    public void testRejectsMissingURI() throws Exception {
+        assertEquals(400, post(url, FORM_TYPE, "", TOKEN));
+        assertEquals(400, post(url, FORM_TYPE, "source=" + encode(SOURCE),
+                TOKEN));
+    }
+
+    @Test
+    public void testRejectsInvalidToken() throws Exception {
+        assertEquals(403, post(url, TEXT_TYPE, SOURCE, "wrong"));
+        assertEquals(403, post(url, TEXT_TYPE, SOURCE, null));
+    }
+
+    @Test
+    public void testRejectsUnknownSources() throws Exception {
+        assertEquals(404, post(url, TEXT_TYPE, "git://git.example.com/none",
+                TOKEN));
+    }
+
+    @Test
+    public void testRejectsLargeBodies() throws Exception {
+        StringBuilder body = new StringBuilder(SOURCE);
+
+        while (body.length() < LARGE_BODY_SIZE) {
+            body.append(' ');
+        }
+
+        assertEquals(413, post(url, TEXT_TYPE, body.toString(), TOKEN));
+    }
+
+    @Test
+    public void testRejectsOtherMethods() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url)
+                .openConnection();
+
+        assertEquals(405, conn.getResponseCode());
+    }
+
+    /* Registers SOURCE as a tracker */
+    static void importSource() throws Exception {
+        Preferences source = Preferences.userNodeForPackage(KESI.class)
+                .node("sources")
+                .node(PreferencesManager.SOURCES_ITS_NODE_ROOT)
+                .node("kesi");
+
+        source.put(PreferencesManager.PREF_SOURCES_URI, SOURCE);
+        source.put(PreferencesManager.PREF_SOURCES_TYPE,
+                SourcesManager.BUGZILLA);
+        PreferencesManager.INSTANCE.setUpPreferences();
+        SourcesManager.INSTANCE.importSources();
+    }
+
+    static int post(String target, String type, String body,
+            String token) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(target)
+                .openConnection();
+        OutputStream out;
+
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+
+        if (type != null) {
+            conn.setRequestProperty("Content-Type", type);
+        }
+
+        if (token != null) {
+            conn.setRequestProperty(WebhookSensor.TOKEN_HEADER, token);
+        }
+
+        out = conn.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+
+        return conn.getResponseCode();
+    }
+
+    private static String encode(String s) throws Exception {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.sources;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Sends notifications to the webhook sensor while the extraction
+ * manager is not running. Test classes run on their own JVMs, so the
+ * manager started by WebhookSensorTest is not seen here.
+ */
+public class WebhookSensorUnavailableTest {
+    private static WebhookSensor sensor;
+    private static String url;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        WebhookSensorTest.importSource();
+
+        sensor = new WebhookSensor("localhost", 0, WebhookSensorTest.TOKEN);
+        sensor.start();
+
+        url = "http://localhost:" + sensor.getPort() + WebhookSensor.PATH;
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        sensor.stop();
+    }
+
+    @Test
+    public void testRejectsRequestsWhenNotRunning() throws Exception {
+        assertEquals(503, WebhookSensorTest.post(url,
+                WebhookSensorTest.TEXT_TYPE, WebhookSensorTest.SOURCE,
+                WebhookSensorTest.TOKEN));
+    }
+
+}
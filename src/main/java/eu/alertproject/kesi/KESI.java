@@ -22,17 +22,23 @@
 
 package eu.alertproject.kesi;
 
+import java.io.IOException;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import eu.alertproject.kesi.database.ConnectionPool;
 import eu.alertproject.kesi.events.EventGenerator;
 import eu.alertproject.kesi.extractors.ExtractionManager;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.publisher.EventPublisher;
 import eu.alertproject.kesi.sources.SensorHandler;
+import eu.alertproject.kesi.sources.SourcesCheckpointer;
 import eu.alertproject.kesi.sources.SourcesManager;
 import eu.alertproject.kesi.sources.SourcesManagerError;
+import eu.alertproject.kesi.sources.SourcesScheduler;
+import eu.alertproject.kesi.sources.WebhookSensor;
 
 public class KESI {
     /* Logger properties names */
@@ -56,32 +62,59 @@ public class KESI {
 
     public void run() {
         SensorHandler handler;
+        WebhookSensor webhook;
 
         logger.info("Starting KESI component");
 
+        Metrics.INSTANCE.start();
+        SourcesCheckpointer.INSTANCE.start();
         EventPublisher.INSTANCE.start();
         EventGenerator.INSTANCE.start();
         ExtractionManager.INSTANCE.start();
 
         try {
             SourcesManager.INSTANCE.setUp();
+
+            /* Pending events go before the ones of the new extractions */
+            EventPublisher.INSTANCE.recover();
+
+            SourcesManager.INSTANCE.downloadSources();
+            SourcesManager.INSTANCE.scheduleSources();
+            SourcesScheduler.INSTANCE.start();
         } catch (SourcesManagerError e) {
             logger.error("Error starting Sources Manager", e);
             throw new RuntimeException(e);
         }
 
-        handler = new SensorHandler();
-        handler.start();
+        webhook = startWebhookSensor();
+
+        if (PreferencesManager.INSTANCE.getSensorMail()) {
+            handler = new SensorHandler();
+            handler.start();
+        } else if (webhook != null) {
+            handler = null;
+        } else {
+            logger.error("Mail and webhook sensors are disabled");
+            throw new RuntimeException("No sensor enabled");
+        }
 
         System.out.println("Running KESI component...");
         logger.info("Subcomponents started. Running KESI component.");
 
         try {
-            handler.join();
+            if (handler != null) {
+                handler.join();
+            } else {
+                webhook.join();
+            }
 
+            SourcesScheduler.INSTANCE.stop();
             ExtractionManager.INSTANCE.stop();
             EventGenerator.INSTANCE.stop();
             EventPublisher.INSTANCE.stop();
+            SourcesCheckpointer.INSTANCE.stop();
+            Metrics.INSTANCE.stop();
+            ConnectionPool.INSTANCE.close();
 
             /* Something went really wrong if all threads are dead */
             logger.error("Unexpected KESI behaviour");
@@ -92,6 +125,33 @@ public class KESI {
         }
     }
 
+    /*
+     * Starts the webhook sensor when its port is set. Returns null
+     * otherwise.
+     */
+    private static WebhookSensor startWebhookSensor() {
+        int port = PreferencesManager.INSTANCE.getSensorWebhookPort();
+        String host = PreferencesManager.INSTANCE.getSensorWebhookHost();
+        WebhookSensor webhook;
+
+        if (port <= 0) {
+            return null;
+        }
+
+        webhook = new WebhookSensor(host, port,
+                PreferencesManager.INSTANCE.getSensorWebhookToken());
+
+        try {
+            webhook.start();
+        } catch (IOException e) {
+            logger.error("Error starting webhook sensor on " + host + ":"
+                    + port, e);
+            throw new RuntimeException(e);
+        }
+
+        return webhook;
+    }
+
     private static void setLogger() {
         Properties props;
         String filepath;
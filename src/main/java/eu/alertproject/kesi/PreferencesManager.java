@@ -29,6 +29,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.InvalidPreferencesFormatException;
@@ -63,13 +64,46 @@ public enum PreferencesManager {
     public static final String PREF_DB_DBMS = "dbms";
     public static final String PREF_DB_DATABASE_ITS = "database.its";
     public static final String PREF_DB_DATABASE_SCM = "database.scm";
+    public static final String PREF_DB_SCM_BATCH_SIZE = "scmBatchSize";
+    public static final String PREF_DB_PAGE_SIZE = "pageSize";
+    public static final String PREF_DB_POOL_MIN_SIZE = "poolMinSize";
+    public static final String PREF_DB_POOL_MAX_SIZE = "poolMaxSize";
+    public static final String PREF_DB_STATEMENT_CACHE = "statementCache";
+    public static final String PREF_DB_VALIDATION_QUERY = "validationQuery";
+    public static final String PREF_DB_SCM_WATERMARK = "scmWatermark";
+    public static final String PREF_DB_CACHE_SIZE = "cacheSize";
+    public static final String PREF_DB_PRELOAD_PEOPLE = "preloadPeople";
+    public static final String PREF_EVENTS_WORKERS = "workers";
+    public static final String PREF_EXTRACTORS_SCM_WORKERS = "scmWorkers";
+    public static final String PREF_EXTRACTORS_ITS_WORKERS = "itsWorkers";
+    public static final String PREF_EXTRACTORS_HOST_LIMIT = "hostLimit";
+    public static final String PREF_EXTRACTORS_TIMEOUT = "timeout";
+    public static final String PREF_EXTRACTORS_DEBOUNCE = "debounce";
     public static final String PREF_LOGGER_FILE_PATH = "logpath";
     public static final String PREF_LOGGER_LEVEL = "level";
+    public static final String PREF_METRICS_INTERVAL = "interval";
+    public static final String PREF_METRICS_LOG = "log";
+    public static final String PREF_METRICS_JMX = "jmx";
     public static final String PREF_PUBLISHER_URL = "url";
     public static final String PREF_PUBLISHER_LIMIT = "setMessagesLimit";
     public static final String PREF_PUBLISHER_MAX_MESSAGES = "maxMessages";
     public static final String PREF_PUBLISHER_EVENTS_PATH = "eventsPath";
     public static final String PREF_PUBLISHER_DEBUG = "debug";
+    public static final String PREF_PUBLISHER_COMPACT_XML = "compactXML";
+    public static final String PREF_PUBLISHER_BATCH_SIZE = "batchSize";
+    public static final String PREF_PUBLISHER_BATCH_TIMEOUT = "batchTimeout";
+    public static final String PREF_PUBLISHER_ASYNC_SEND = "asyncSend";
+    public static final String PREF_PUBLISHER_BYTES_MESSAGES = "bytesMessages";
+    public static final String PREF_PUBLISHER_QUEUE_SIZE = "queueSize";
+    public static final String PREF_PUBLISHER_QUEUE_OVERFLOW = "queueOverflow";
+    public static final String PREF_PUBLISHER_SPILL_PATH = "spillPath";
+    public static final String PREF_PUBLISHER_JOURNAL_PATH = "journalPath";
+    public static final String PREF_PUBLISHER_JOURNAL_SEGMENT_SIZE = "journalSegmentSize";
+    public static final String PREF_PUBLISHER_JOURNAL_SYNC = "journalSync";
+    public static final String PREF_PUBLISHER_ARCHIVE_SEGMENT_SIZE = "archiveSegmentSize";
+    public static final String PREF_PUBLISHER_ARCHIVE_SEGMENT_TIME = "archiveSegmentTime";
+    public static final String PREF_PUBLISHER_ARCHIVE_COMPRESS = "archiveCompress";
+    public static final String PREF_PUBLISHER_ARCHIVE_BLOCK_SIZE = "archiveBlockSize";
     public static final String PREF_SENSOR_USERNAME = "username";
     public static final String PREF_SENSOR_PASSWORD = "password";
     public static final String PREF_SENSOR_PROTOCOL = "protocol";
@@ -78,6 +112,14 @@ public enum PreferencesManager {
     public static final String PREF_SENSOR_EMAIL_FOLDER = "folder";
     public static final String PREF_SENSOR_TIMEOUT = "timeout";
     public static final String PREF_SENSOR_POLL_INTERVAL = "polling";
+    public static final String PREF_SENSOR_IDLE = "idle";
+    public static final String PREF_SENSOR_IDLE_REFRESH = "idleRefresh";
+    public static final String PREF_SENSOR_RECONNECT_DELAY = "reconnectDelay";
+    public static final String PREF_SENSOR_MAX_RECONNECT_DELAY = "maxReconnectDelay";
+    public static final String PREF_SENSOR_MAIL = "mail";
+    public static final String PREF_SENSOR_WEBHOOK_HOST = "webhookHost";
+    public static final String PREF_SENSOR_WEBHOOK_PORT = "webhookPort";
+    public static final String PREF_SENSOR_WEBHOOK_TOKEN = "webhookToken";
     public static final String PREF_SOURCES_DOWNLOAD_PATH = "sourcesPath";
     public static final String PREF_SOURCES_URI = "uri";
     public static final String PREF_SOURCES_TYPE = "type";
@@ -85,6 +127,16 @@ public enum PreferencesManager {
     public static final String PREF_SOURCES_PASSWORD = "password";
     public static final String PREF_SOURCES_ON_START = "onStart";
     public static final String PREF_SOURCES_LAST_SENT = "lastSent";
+    public static final String PREF_SOURCES_LAST_SENT_ID = "lastSentId";
+    public static final String PREF_SOURCES_CHECKPOINT_INTERVAL = "checkpointInterval";
+    public static final String PREF_SOURCES_CHECKPOINT_EVENTS = "checkpointEvents";
+    public static final String PREF_SOURCES_GIT_TIMEOUT = "gitTimeout";
+    public static final String PREF_SOURCES_PARTIAL_CLONE = "partialClone";
+    public static final String PREF_SOURCES_DOWNLOAD_WORKERS = "downloadWorkers";
+    public static final String PREF_SOURCES_POLL = "poll";
+    public static final String PREF_SOURCES_POLL_MIN_INTERVAL = "pollMinInterval";
+    public static final String PREF_SOURCES_POLL_MAX_INTERVAL = "pollMaxInterval";
+    public static final String PREF_SOURCES_POLL_BUDGET = "pollBudget";
 
     /*
      * Startup values
@@ -93,6 +145,19 @@ public enum PreferencesManager {
     public static final String PUBLISH = "publish";
     public static final String EXTRACT_AND_PUBLISH = "both";
 
+    /*
+     * SCM watermark values
+     */
+    public static final String WATERMARK_DATE = "date";
+    public static final String WATERMARK_ID = "id";
+
+    /*
+     * Queue overflow values
+     */
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_REJECT = "reject";
+    public static final String OVERFLOW_SPILL = "spill";
+
     /*
      * Logger levels
      */
@@ -113,24 +178,75 @@ public enum PreferencesManager {
     public static final String DEF_DB_DBMS = "mysql";
     public static final String DEF_DB_DATABASE_ITS = "its";
     public static final String DEF_DB_DATABASE_SCM = "scm";
+    public static final int DEF_DB_SCM_BATCH_SIZE = 100;
+    public static final int DEF_DB_PAGE_SIZE = 1000;
+    public static final int DEF_DB_POOL_MIN_SIZE = 1;
+    public static final int DEF_DB_POOL_MAX_SIZE = 8;
+    public static final int DEF_DB_STATEMENT_CACHE = 50;
+    public static final String DEF_DB_VALIDATION_QUERY = "SELECT 1";
+    public static final String DEF_DB_SCM_WATERMARK = WATERMARK_DATE;
+    public static final int DEF_DB_CACHE_SIZE = 10000;
+    public static final Boolean DEF_DB_PRELOAD_PEOPLE = false;
+    public static final int DEF_EVENTS_WORKERS = 4;
+    public static final int DEF_EXTRACTORS_SCM_WORKERS = 2;
+    public static final int DEF_EXTRACTORS_ITS_WORKERS = 2;
+    public static final int DEF_EXTRACTORS_HOST_LIMIT = 1;
+    public static final long DEF_EXTRACTORS_TIMEOUT = 24 * 3600000;
+    public static final long DEF_EXTRACTORS_DEBOUNCE = 60000;
     public static final String DEF_LOGGER_FILE_PATH = "/tmp/kesi.log";
     public static final String DEF_LOGGER_LEVEL = "info";
+    public static final int DEF_METRICS_INTERVAL = 60000;
+    public static final Boolean DEF_METRICS_LOG = true;
+    public static final Boolean DEF_METRICS_JMX = true;
     public static final String DEF_PUBLISHER_URL = "failover://tcp://localhost:61616";
     public static final Boolean DEF_PUBLISHER_LIMIT = false;
     public static final int DEF_PUBLISHER_MAX_MESSAGES = 50000;
     public static final Boolean DEF_PUBLISHER_DEBUG = false;
+    public static final Boolean DEF_PUBLISHER_COMPACT_XML = false;
+    public static final int DEF_PUBLISHER_BATCH_SIZE = 1;
+    public static final int DEF_PUBLISHER_BATCH_TIMEOUT = 1000;
+    public static final Boolean DEF_PUBLISHER_ASYNC_SEND = false;
+    public static final Boolean DEF_PUBLISHER_BYTES_MESSAGES = false;
+    public static final int DEF_PUBLISHER_QUEUE_SIZE = 1000;
+    public static final String DEF_PUBLISHER_QUEUE_OVERFLOW = OVERFLOW_BLOCK;
+    public static final int DEF_PUBLISHER_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final Boolean DEF_PUBLISHER_JOURNAL_SYNC = false;
+    public static final long DEF_PUBLISHER_ARCHIVE_SEGMENT_SIZE = 128 * 1024 * 1024;
+    public static final long DEF_PUBLISHER_ARCHIVE_SEGMENT_TIME = 3600000;
+    public static final Boolean DEF_PUBLISHER_ARCHIVE_COMPRESS = false;
+    public static final int DEF_PUBLISHER_ARCHIVE_BLOCK_SIZE = 64 * 1024;
     public static final String DEF_SENSOR_PROTOCOL = "imaps";
     public static final String DEF_SENSOR_EMAIL_FOLDER = "Inbox";
+    public static final int DEF_SENSOR_PORT = -1;
     public static final int DEF_SENSOR_TIMEOUT = 5000;
     public static final int DEF_SENSOR_POLL_INTERVAL = 10000;
+    public static final Boolean DEF_SENSOR_IDLE = true;
+    public static final int DEF_SENSOR_IDLE_REFRESH = 25 * 60000;
+    public static final int DEF_SENSOR_RECONNECT_DELAY = 1000;
+    public static final int DEF_SENSOR_MAX_RECONNECT_DELAY = 5 * 60000;
+    public static final Boolean DEF_SENSOR_MAIL = true;
+    public static final String DEF_SENSOR_WEBHOOK_HOST = "localhost";
+    public static final int DEF_SENSOR_WEBHOOK_PORT = 0;
     public static final String DEF_SOURCES_DOWNLOAD_PATH = "/tmp/";
     public static final String DEF_SOURCES_LAST_SENT = "0001-01-01 00:00:00";
+    public static final int DEF_SOURCES_CHECKPOINT_INTERVAL = 5000;
+    public static final int DEF_SOURCES_CHECKPOINT_EVENTS = 500;
+    public static final long DEF_SOURCES_GIT_TIMEOUT = 3600000;
+    public static final Boolean DEF_SOURCES_PARTIAL_CLONE = false;
+    public static final int DEF_SOURCES_DOWNLOAD_WORKERS = 4;
+    public static final Boolean DEF_SOURCES_POLL = true;
+    public static final long DEF_SOURCES_POLL_MIN_INTERVAL = 5 * 60000;
+    public static final long DEF_SOURCES_POLL_MAX_INTERVAL = 24 * 3600000;
+    public static final int DEF_SOURCES_POLL_BUDGET = 2;
 
     /*
      * Preferences node roots names
      */
     private static final String DATABASE_NODE_ROOT = "database";
+    private static final String EVENTS_NODE_ROOT = "events";
+    private static final String EXTRACTORS_NODE_ROOT = "extractors";
     private static final String LOGGER_NODE_ROOT = "logger";
+    private static final String METRICS_NODE_ROOT = "metrics";
     private static final String PUBlISHER_NODE_ROOT = "publisher";
     private static final String SENSOR_NODE_ROOT = "sensor";
     private static final String SOURCES_NODE_ROOT = "sources";
@@ -139,7 +255,10 @@ public enum PreferencesManager {
 
     private Preferences prefs;
     private Preferences db;
+    private Preferences events;
+    private Preferences extractors;
     private Preferences logger;
+    private Preferences metrics;
     private Preferences publisher;
     private Preferences sensor;
     private Preferences sources;
@@ -190,7 +309,10 @@ public enum PreferencesManager {
 
     private void loadComponentsPreferences() {
         loadDatabasePreferences();
+        loadEventsPreferences();
+        loadExtractorsPreferences();
         loadLoggerPreferences();
+        loadMetricsPreferences();
         loadSourcesPreferences();
         loadSensorPreferences();
         loadPublisherPreferences();
@@ -248,10 +370,22 @@ public enum PreferencesManager {
         db = prefs.node(DATABASE_NODE_ROOT);
     }
 
+    private void loadEventsPreferences() {
+        events = prefs.node(EVENTS_NODE_ROOT);
+    }
+
+    private void loadExtractorsPreferences() {
+        extractors = prefs.node(EXTRACTORS_NODE_ROOT);
+    }
+
     private void loadLoggerPreferences() {
         logger = prefs.node(LOGGER_NODE_ROOT);
     }
 
+    private void loadMetricsPreferences() {
+        metrics = prefs.node(METRICS_NODE_ROOT);
+    }
+
     private void loadSourcesPreferences() {
         sources = prefs.node(SOURCES_NODE_ROOT);
     }
@@ -291,6 +425,77 @@ public enum PreferencesManager {
         return db.get(PREF_DB_DATABASE_SCM, DEF_DB_DATABASE_SCM);
     }
 
+    public int getDatabaseSCMBatchSize() {
+        return db.getInt(PREF_DB_SCM_BATCH_SIZE, DEF_DB_SCM_BATCH_SIZE);
+    }
+
+    public int getDatabasePageSize() {
+        return db.getInt(PREF_DB_PAGE_SIZE, DEF_DB_PAGE_SIZE);
+    }
+
+    public int getDatabasePoolMinSize() {
+        return db.getInt(PREF_DB_POOL_MIN_SIZE, DEF_DB_POOL_MIN_SIZE);
+    }
+
+    public int getDatabasePoolMaxSize() {
+        return db.getInt(PREF_DB_POOL_MAX_SIZE, DEF_DB_POOL_MAX_SIZE);
+    }
+
+    public int getDatabaseStatementCache() {
+        return db.getInt(PREF_DB_STATEMENT_CACHE, DEF_DB_STATEMENT_CACHE);
+    }
+
+    public String getDatabaseValidationQuery() {
+        return db.get(PREF_DB_VALIDATION_QUERY, DEF_DB_VALIDATION_QUERY);
+    }
+
+    public String getDatabaseSCMWatermark() {
+        return db.get(PREF_DB_SCM_WATERMARK, DEF_DB_SCM_WATERMARK);
+    }
+
+    public int getDatabaseCacheSize() {
+        return db.getInt(PREF_DB_CACHE_SIZE, DEF_DB_CACHE_SIZE);
+    }
+
+    public Boolean getDatabasePreloadPeople() {
+        return db.getBoolean(PREF_DB_PRELOAD_PEOPLE, DEF_DB_PRELOAD_PEOPLE);
+    }
+
+    /*
+     * Event generator preferences getters
+     */
+    public int getEventsWorkers() {
+        return events.getInt(PREF_EVENTS_WORKERS, DEF_EVENTS_WORKERS);
+    }
+
+    /*
+     * Extractors preferences getters
+     */
+    public int getExtractorsSCMWorkers() {
+        return extractors.getInt(PREF_EXTRACTORS_SCM_WORKERS,
+                DEF_EXTRACTORS_SCM_WORKERS);
+    }
+
+    public int getExtractorsITSWorkers() {
+        return extractors.getInt(PREF_EXTRACTORS_ITS_WORKERS,
+                DEF_EXTRACTORS_ITS_WORKERS);
+    }
+
+    public int getExtractorsHostLimit() {
+        return extractors.getInt(PREF_EXTRACTORS_HOST_LIMIT,
+                DEF_EXTRACTORS_HOST_LIMIT);
+    }
+
+    public long getExtractorsTimeout() {
+        return extractors.getLong(PREF_EXTRACTORS_TIMEOUT,
+                DEF_EXTRACTORS_TIMEOUT);
+    }
+
+    public long getExtractorsDebounce() {
+        return extractors.getLong(PREF_EXTRACTORS_DEBOUNCE,
+                DEF_EXTRACTORS_DEBOUNCE);
+    }
+
     /*
      * Logger preferences getters
      */
@@ -310,6 +515,21 @@ public enum PreferencesManager {
         return level;
     }
 
+    /*
+     * Metrics preferences getters
+     */
+    public int getMetricsInterval() {
+        return metrics.getInt(PREF_METRICS_INTERVAL, DEF_METRICS_INTERVAL);
+    }
+
+    public Boolean getMetricsLog() {
+        return metrics.getBoolean(PREF_METRICS_LOG, DEF_METRICS_LOG);
+    }
+
+    public Boolean getMetricsJMX() {
+        return metrics.getBoolean(PREF_METRICS_JMX, DEF_METRICS_JMX);
+    }
+
     /*
      * Event publisher preferences getters
      */
@@ -334,6 +554,79 @@ public enum PreferencesManager {
         return publisher.getBoolean(PREF_PUBLISHER_DEBUG, DEF_PUBLISHER_DEBUG);
     }
 
+    public Boolean getPublisherCompactXML() {
+        return publisher.getBoolean(PREF_PUBLISHER_COMPACT_XML,
+                DEF_PUBLISHER_COMPACT_XML);
+    }
+
+    public int getPublisherBatchSize() {
+        return publisher.getInt(PREF_PUBLISHER_BATCH_SIZE,
+                DEF_PUBLISHER_BATCH_SIZE);
+    }
+
+    public int getPublisherBatchTimeout() {
+        return publisher.getInt(PREF_PUBLISHER_BATCH_TIMEOUT,
+                DEF_PUBLISHER_BATCH_TIMEOUT);
+    }
+
+    public Boolean getPublisherAsyncSend() {
+        return publisher.getBoolean(PREF_PUBLISHER_ASYNC_SEND,
+                DEF_PUBLISHER_ASYNC_SEND);
+    }
+
+    public Boolean getPublisherBytesMessages() {
+        return publisher.getBoolean(PREF_PUBLISHER_BYTES_MESSAGES,
+                DEF_PUBLISHER_BYTES_MESSAGES);
+    }
+
+    public int getPublisherQueueSize() {
+        return publisher.getInt(PREF_PUBLISHER_QUEUE_SIZE,
+                DEF_PUBLISHER_QUEUE_SIZE);
+    }
+
+    public String getPublisherQueueOverflow() {
+        return publisher.get(PREF_PUBLISHER_QUEUE_OVERFLOW,
+                DEF_PUBLISHER_QUEUE_OVERFLOW);
+    }
+
+    public String getPublisherSpillPath() {
+        return publisher.get(PREF_PUBLISHER_SPILL_PATH, DEF_VALUE);
+    }
+
+    public String getPublisherJournalPath() {
+        return publisher.get(PREF_PUBLISHER_JOURNAL_PATH, DEF_VALUE);
+    }
+
+    public int getPublisherJournalSegmentSize() {
+        return publisher.getInt(PREF_PUBLISHER_JOURNAL_SEGMENT_SIZE,
+                DEF_PUBLISHER_JOURNAL_SEGMENT_SIZE);
+    }
+
+    public Boolean getPublisherJournalSync() {
+        return publisher.getBoolean(PREF_PUBLISHER_JOURNAL_SYNC,
+                DEF_PUBLISHER_JOURNAL_SYNC);
+    }
+
+    public long getPublisherArchiveSegmentSize() {
+        return publisher.getLong(PREF_PUBLISHER_ARCHIVE_SEGMENT_SIZE,
+                DEF_PUBLISHER_ARCHIVE_SEGMENT_SIZE);
+    }
+
+    public long getPublisherArchiveSegmentTime() {
+        return publisher.getLong(PREF_PUBLISHER_ARCHIVE_SEGMENT_TIME,
+                DEF_PUBLISHER_ARCHIVE_SEGMENT_TIME);
+    }
+
+    public Boolean getPublisherArchiveCompress() {
+        return publisher.getBoolean(PREF_PUBLISHER_ARCHIVE_COMPRESS,
+                DEF_PUBLISHER_ARCHIVE_COMPRESS);
+    }
+
+    public int getPublisherArchiveBlockSize() {
+        return publisher.getInt(PREF_PUBLISHER_ARCHIVE_BLOCK_SIZE,
+                DEF_PUBLISHER_ARCHIVE_BLOCK_SIZE);
+    }
+
     /*
      * Sensor preferences getters
      */
@@ -349,6 +642,10 @@ public enum PreferencesManager {
         return sensor.get(PREF_SENSOR_HOST, DEF_VALUE);
     }
 
+    public int getSensorPort() {
+        return sensor.getInt(PREF_SENSOR_PORT, DEF_SENSOR_PORT);
+    }
+
     public String getSensorProtocol() {
         return sensor.get(PREF_SENSOR_PROTOCOL, DEF_SENSOR_PROTOCOL);
     }
@@ -366,6 +663,42 @@ public enum PreferencesManager {
                 DEF_SENSOR_POLL_INTERVAL);
     }
 
+    public Boolean getSensorIdle() {
+        return sensor.getBoolean(PREF_SENSOR_IDLE, DEF_SENSOR_IDLE);
+    }
+
+    public int getSensorIdleRefresh() {
+        return sensor.getInt(PREF_SENSOR_IDLE_REFRESH,
+                DEF_SENSOR_IDLE_REFRESH);
+    }
+
+    public int getSensorReconnectDelay() {
+        return sensor.getInt(PREF_SENSOR_RECONNECT_DELAY,
+                DEF_SENSOR_RECONNECT_DELAY);
+    }
+
+    public int getSensorMaxReconnectDelay() {
+        return sensor.getInt(PREF_SENSOR_MAX_RECONNECT_DELAY,
+                DEF_SENSOR_MAX_RECONNECT_DELAY);
+    }
+
+    public Boolean getSensorMail() {
+        return sensor.getBoolean(PREF_SENSOR_MAIL, DEF_SENSOR_MAIL);
+    }
+
+    public String getSensorWebhookHost() {
+        return sensor.get(PREF_SENSOR_WEBHOOK_HOST, DEF_SENSOR_WEBHOOK_HOST);
+    }
+
+    public int getSensorWebhookPort() {
+        return sensor.getInt(PREF_SENSOR_WEBHOOK_PORT,
+                DEF_SENSOR_WEBHOOK_PORT);
+    }
+
+    public String getSensorWebhookToken() {
+        return sensor.get(PREF_SENSOR_WEBHOOK_TOKEN, DEF_VALUE);
+    }
+
     /*
      * Knowledge Sources preferences getters
      */
@@ -435,6 +768,36 @@ public enum PreferencesManager {
 
     public void updateSource(StructuredKnowledgeSource src)
             throws PreferencesError {
+        Preferences sourceNode = putSourceDate(src);
+
+        try {
+            sourceNode.sync();
+        } catch (BackingStoreException e) {
+            String msg = "Error updating source. " + e.getMessage();
+            throw new PreferencesError(msg);
+        }
+    }
+
+    /*
+     * Updates the dates of several sources writing them to the backing
+     * store only once.
+     */
+    public void updateSources(Collection<StructuredKnowledgeSource> srcs)
+            throws PreferencesError {
+        for (StructuredKnowledgeSource src : srcs) {
+            putSourceDate(src);
+        }
+
+        try {
+            sources.sync();
+        } catch (BackingStoreException e) {
+            String msg = "Error updating sources. " + e.getMessage();
+            throw new PreferencesError(msg);
+        }
+    }
+
+    private Preferences putSourceDate(StructuredKnowledgeSource src) {
+        StructuredKnowledgeSource.Watermark watermark = src.getWatermark();
         Preferences sourceNode;
 
         if (src instanceof IssueTracker) {
@@ -445,14 +808,14 @@ public enum PreferencesManager {
 
         sourceNode = sourceNode.node(src.getId());
         sourceNode.put(PREF_SOURCES_LAST_SENT,
-                Database.dateToString(src.getDate()));
+                Database.dateToString(watermark.getDate()));
 
-        try {
-            sourceNode.sync();
-        } catch (BackingStoreException e) {
-            String msg = "Error updating source. " + e.getMessage();
-            throw new PreferencesError(msg);
+        if (watermark.getLastID() != StructuredKnowledgeSource.NO_ID) {
+            sourceNode.putInt(PREF_SOURCES_LAST_SENT_ID,
+                    watermark.getLastID());
         }
+
+        return sourceNode;
     }
 
     public String getSourcesDownloadPath() {
@@ -460,6 +823,50 @@ public enum PreferencesManager {
                 DEF_SOURCES_DOWNLOAD_PATH);
     }
 
+    public int getSourcesCheckpointInterval() {
+        return sources.getInt(PREF_SOURCES_CHECKPOINT_INTERVAL,
+                DEF_SOURCES_CHECKPOINT_INTERVAL);
+    }
+
+    public int getSourcesCheckpointEvents() {
+        return sources.getInt(PREF_SOURCES_CHECKPOINT_EVENTS,
+                DEF_SOURCES_CHECKPOINT_EVENTS);
+    }
+
+    public long getSourcesGitTimeout() {
+        return sources.getLong(PREF_SOURCES_GIT_TIMEOUT,
+                DEF_SOURCES_GIT_TIMEOUT);
+    }
+
+    public Boolean getSourcesPartialClone() {
+        return sources.getBoolean(PREF_SOURCES_PARTIAL_CLONE,
+                DEF_SOURCES_PARTIAL_CLONE);
+    }
+
+    public int getSourcesDownloadWorkers() {
+        return sources.getInt(PREF_SOURCES_DOWNLOAD_WORKERS,
+                DEF_SOURCES_DOWNLOAD_WORKERS);
+    }
+
+    public Boolean getSourcesPoll() {
+        return sources.getBoolean(PREF_SOURCES_POLL, DEF_SOURCES_POLL);
+    }
+
+    public long getSourcesPollMinInterval() {
+        return sources.getLong(PREF_SOURCES_POLL_MIN_INTERVAL,
+                DEF_SOURCES_POLL_MIN_INTERVAL);
+    }
+
+    public long getSourcesPollMaxInterval() {
+        return sources.getLong(PREF_SOURCES_POLL_MAX_INTERVAL,
+                DEF_SOURCES_POLL_MAX_INTERVAL);
+    }
+
+    public int getSourcesPollBudget() {
+        return sources.getInt(PREF_SOURCES_POLL_BUDGET,
+                DEF_SOURCES_POLL_BUDGET);
+    }
+
     /*
      * Logger preferences private methods
      */
@@ -495,7 +902,8 @@ public enum PreferencesManager {
         source.setUser(getSourceUser(node, id));
         source.setPassword(getSourcePassword(node, id));
         source.setSetup(getSourceOnStart(node, id));
-        source.setDate(getSourceLastSent(node, id));
+        source.setWatermark(getSourceLastSent(node, id),
+                getSourceLastSentID(node, id));
 
         return source;
     }
@@ -566,6 +974,11 @@ public enum PreferencesManager {
         }
     }
 
+    private int getSourceLastSentID(Preferences prefs, String id) {
+        return prefs.getInt(PREF_SOURCES_LAST_SENT_ID,
+                StructuredKnowledgeSource.NO_ID);
+    }
+
     private int convertToOnStartJobTypes(String onStart)
             throws PreferencesError {
         if (onStart == null) {
@@ -99,10 +99,21 @@ public class BugzillaRetrieval extends ITSRetrieval {
             + "FROM issues_log_bugzilla "
             + "WHERE issue_id = ? ORDER BY id LIMIT 1 ";
 
+    /* Max number of issues on the extras cache */
+    private static final int MAX_CACHED_EXTRAS = 1000;
+
+    /*
+     * Bugzilla fields of the issues used on this run. Events of the
+     * same issue use the same row, so it is only retrieved once.
+     */
+    private final EntityCache<BugzillaExtras> extras;
+
     public BugzillaRetrieval(String driver, String username, String password,
             String host, String port, String database)
             throws DriverNotSupportedError, DatabaseConnectionError {
         super(driver, username, password, host, port, database);
+        extras = new EntityCache<BugzillaExtras>("Bugzilla extras",
+                MAX_CACHED_EXTRAS);
     }
 
     @Override
@@ -288,69 +299,65 @@ public class BugzillaRetrieval extends ITSRetrieval {
     }
 
     private Product getBugzillaProduct(int issueID) throws SQLException {
-        String productName;
-        String componentName;
-        String version;
-        Product product;
-        PreparedStatement stmt;
-        ResultSet rs;
-
-        stmt = prepareStatement(ITS_QUERY_ISSUE_BUGZILLA);
-        stmt.setInt(1, issueID);
-        rs = executeQuery(stmt);
-        rs.first();
-
-        productName = rs.getString(ITS_BUGZILLA_PRODUCT);
-        componentName = rs.getString(ITS_BUGZILLA_COMPONENT);
-        version = rs.getString(ITS_BUGZILLA_VERSION);
-
-        stmt.close();
-
-        product = new Product(productName, componentName, version);
+        BugzillaExtras row = getBugzillaExtras(issueID);
 
-        return product;
+        return new Product(row.product, row.component, row.version);
     }
 
     private ComputerSystem getBugzillaCP(int issueID) throws SQLException {
-        String os;
-        String platform;
-        ComputerSystem cp;
-        PreparedStatement stmt;
-        ResultSet rs;
+        BugzillaExtras row = getBugzillaExtras(issueID);
 
-        stmt = prepareStatement(ITS_QUERY_ISSUE_BUGZILLA);
-        stmt.setInt(1, issueID);
-        rs = executeQuery(stmt);
-        rs.first();
-
-        platform = rs.getString(ITS_BUGZILLA_PLATFORM);
-        os = rs.getString(ITS_BUGZILLA_OS);
-
-        stmt.close();
+        return new ComputerSystem(row.platform, row.os);
+    }
 
-        cp = new ComputerSystem(platform, os);
+    private Milestone getBugzillaMilestone(int issueID) throws SQLException {
+        BugzillaExtras row = getBugzillaExtras(issueID);
 
-        return cp;
+        return new Milestone(row.milestone);
     }
 
-    private Milestone getBugzillaMilestone(int issueID) throws SQLException {
-        String release;
-        Milestone milestone;
+    private BugzillaExtras getBugzillaExtras(int issueID) throws SQLException {
+        BugzillaExtras row;
         PreparedStatement stmt;
         ResultSet rs;
 
+        row = extras.get(getURL(), issueID);
+
+        if (row != null) {
+            return row;
+        }
+
         stmt = prepareStatement(ITS_QUERY_ISSUE_BUGZILLA);
         stmt.setInt(1, issueID);
         rs = executeQuery(stmt);
         rs.first();
 
-        release = rs.getString(ITS_BUGZILLA_TARGET_MILESTONE);
+        row = new BugzillaExtras();
+        row.product = rs.getString(ITS_BUGZILLA_PRODUCT);
+        row.component = rs.getString(ITS_BUGZILLA_COMPONENT);
+        row.version = rs.getString(ITS_BUGZILLA_VERSION);
+        row.platform = rs.getString(ITS_BUGZILLA_PLATFORM);
+        row.os = rs.getString(ITS_BUGZILLA_OS);
+        row.milestone = rs.getString(ITS_BUGZILLA_TARGET_MILESTONE);
 
         stmt.close();
 
-        milestone = new Milestone(release);
+        extras.put(getURL(), issueID, row);
 
-        return milestone;
+        return row;
+    }
+
+    /*
+     * Row of issues_log_bugzilla. Model objects are modified by
+     * events, so new ones are created from this row every time.
+     */
+    private static class BugzillaExtras {
+        String product;
+        String component;
+        String version;
+        String platform;
+        String os;
+        String milestone;
     }
 
 }
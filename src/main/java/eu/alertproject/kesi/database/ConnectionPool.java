@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import eu.alertproject.kesi.PreferencesManager;
+
+/**
+ * Pool of database connections shared by all the retrieval classes.
+ * There is a data source for each database URL and user. Closing a
+ * connection obtained from here returns it to its pool.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum ConnectionPool {
+    INSTANCE;
+
+    /* Time between runs of the idle connections checker */
+    private static final long EVICTION_INTERVAL = 60000;
+
+    private static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    private final HashMap<String, BasicDataSource> sources = new HashMap<String, BasicDataSource>();
+
+    public Connection getConnection(String driverClass, String url,
+            String username, String password) throws SQLException {
+        BasicDataSource source = getDataSource(driverClass, url, username,
+                password);
+        return source.getConnection();
+    }
+
+    public synchronized void close() {
+        for (BasicDataSource source : sources.values()) {
+            try {
+                source.close();
+            } catch (SQLException e) {
+                logger.error("Error closing connection pool for "
+                        + source.getUrl(), e);
+            }
+        }
+
+        sources.clear();
+        logger.debug("Connection pools closed");
+    }
+
+    private synchronized BasicDataSource getDataSource(String driverClass,
+            String url, String username, String password) {
+        String key = username + "@" + url;
+        BasicDataSource source = sources.get(key);
+
+        if (source == null) {
+            source = createDataSource(driverClass, url, username, password);
+            sources.put(key, source);
+        }
+
+        return source;
+    }
+
+    private BasicDataSource createDataSource(String driverClass, String url,
+            String username, String password) {
+        BasicDataSource source;
+        int minSize;
+        int maxSize;
+        int statements;
+        String validationQuery;
+
+        minSize = PreferencesManager.INSTANCE.getDatabasePoolMinSize();
+        maxSize = PreferencesManager.INSTANCE.getDatabasePoolMaxSize();
+        statements = PreferencesManager.INSTANCE.getDatabaseStatementCache();
+        validationQuery = PreferencesManager.INSTANCE
+                .getDatabaseValidationQuery();
+
+        source = new BasicDataSource();
+        source.setDriverClassName(driverClass);
+        source.setUrl(url);
+        source.setUsername(username);
+        source.setPassword(password);
+
+        source.setInitialSize(minSize);
+        source.setMinIdle(minSize);
+        source.setMaxIdle(maxSize);
+        source.setMaxActive(maxSize);
+
+        /* Connections are checked before using them and while idle */
+        source.setValidationQuery(validationQuery);
+        source.setTestOnBorrow(true);
+        source.setTestWhileIdle(true);
+        source.setTimeBetweenEvictionRunsMillis(EVICTION_INTERVAL);
+
+        /* Prepared statements cache */
+        if (statements > 0) {
+            source.setPoolPreparedStatements(true);
+            source.setMaxOpenPreparedStatements(statements);
+        }
+
+        logger.debug(String.format(
+                "Connection pool created for %s. Size: %d-%d", url, minSize,
+                maxSize));
+
+        return source;
+    }
+}
@@ -23,7 +23,6 @@
 package eu.alertproject.kesi.database;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -32,31 +31,30 @@ import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
 public class Database {
+    private static final String MYSQL_DRIVER = "com.mysql.jdbc.Driver";
+
     private Connection conn;
+    private String url;
     protected Logger logger;
 
     public Database(String driver, String userName, String password,
             String host, String port, String database)
             throws DriverNotSupportedError, DatabaseConnectionError {
-        Properties connectionProps;
-        String url = null;
+        url = null;
 
         logger = Logger.getLogger(Database.class);
-        connectionProps = new Properties();
-        connectionProps.put("user", userName);
-        connectionProps.put("password", password);
 
         try {
             if (driver.equals("mysql")) {
                 url = "jdbc:" + driver + "://" + host + ":" + port + "/"
                         + database;
                 logger.debug("Connecting to database. URL:" + url);
-                conn = DriverManager.getConnection(url, connectionProps);
+                conn = ConnectionPool.INSTANCE.getConnection(MYSQL_DRIVER,
+                        url, userName, password);
                 logger.debug("Connection established");
             } else {
                 throw new DriverNotSupportedError(driver);
@@ -66,6 +64,26 @@ public class Database {
         }
     }
 
+    /**
+     * Returns the JDBC URL of the database.
+     */
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * Returns the connection to the pool. The object can not be used
+     * after calling this method.
+     */
+    public void close() {
+        try {
+            conn.close();
+            logger.debug("Connection released");
+        } catch (SQLException e) {
+            logger.error("Error releasing database connection", e);
+        }
+    }
+
     public PreparedStatement prepareStatement(String query) throws SQLException {
         return conn.prepareStatement(query);
     }
@@ -92,6 +110,23 @@ public class Database {
         return rs;
     }
 
+    /*
+     * Returns a list of n placeholders separated by commas, ready to
+     * be used on IN clauses of prepared statements
+     */
+    protected static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("?");
+        }
+
+        return sb.toString();
+    }
+
     /*
      * FIXME: move these to functions to other site change name of
      * dateToString
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of entities retrieved from the databases. Entities are
+ * indexed by the URL of their database and their id. When the cache is
+ * full, the least recently used entity is evicted.
+ *
+ * Cached entities are shared by several threads, so they must not be
+ * modified once they are in the cache.
+ */
+public class EntityCache<V> {
+    private final String name;
+    private final int capacity;
+    private final LinkedHashMap<String, V> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public EntityCache(String name, int capacity) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > EntityCache.this.capacity) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Returns the entity with the given id on the database identified
+     * by url, or null when it is not in the cache.
+     */
+    public synchronized V get(String url, int id) {
+        V value = entries.get(key(url, id));
+
+        if (value != null) {
+            ++hits;
+        } else {
+            ++misses;
+        }
+
+        return value;
+    }
+
+    public synchronized boolean contains(String url, int id) {
+        return entries.containsKey(key(url, id));
+    }
+
+    public synchronized void put(String url, int id, V value) {
+        if (value != null) {
+            entries.put(key(url, id), value);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " cache: " + entries.size() + "/" + capacity
+                + " entries, " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions";
+    }
+
+    private static String key(String url, int id) {
+        return url + "#" + id;
+    }
+
+}
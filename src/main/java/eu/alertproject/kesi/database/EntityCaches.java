@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.database;
+
+import java.net.URI;
+import java.util.HashSet;
+
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.model.IssueTracker;
+import eu.alertproject.kesi.model.Person;
+
+/**
+ * Entity caches shared by every retrieval object, so entities found by
+ * a job are reused by the next ones.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum EntityCaches {
+    INSTANCE;
+
+    private final EntityCache<Person> people;
+    private final EntityCache<URI> repositories;
+    private final EntityCache<IssueTracker> trackers;
+
+    /* Databases whose people were already preloaded */
+    private final HashSet<String> preloaded;
+
+    private EntityCaches() {
+        int size = PreferencesManager.INSTANCE.getDatabaseCacheSize();
+
+        people = new EntityCache<Person>("People", size);
+        repositories = new EntityCache<URI>("Repositories", size);
+        trackers = new EntityCache<IssueTracker>("Trackers", size);
+        preloaded = new HashSet<String>();
+    }
+
+    public EntityCache<Person> getPeople() {
+        return people;
+    }
+
+    public EntityCache<URI> getRepositories() {
+        return repositories;
+    }
+
+    public EntityCache<IssueTracker> getTrackers() {
+        return trackers;
+    }
+
+    /**
+     * Returns true only the first time it is called for the database
+     * identified by url, when people preloading is enabled.
+     */
+    public synchronized boolean shouldPreloadPeople(String url) {
+        if (!PreferencesManager.INSTANCE.getDatabasePreloadPeople()) {
+            return false;
+        }
+
+        return preloaded.add(url);
+    }
+
+    @Override
+    public String toString() {
+        return people + "; " + repositories + "; " + trackers;
+    }
+
+}
@@ -23,6 +23,9 @@ package eu.alertproject.kesi.database;
 
 import java.sql.Timestamp;
 
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.model.StructuredKnowledgeSource;
+
 public class EventSetFactory {
     private final Database connection;
 
@@ -32,10 +35,34 @@ public class EventSetFactory {
 
     public EventSet getEventSet(String url, Timestamp lastSent)
             throws DatabaseExtractionError, DatabaseNotSupportedError {
+        return getEventSet(url, lastSent, StructuredKnowledgeSource.NO_ID);
+    }
+
+    /**
+     * Returns the events of the source after lastSent. When lastID is
+     * known, SCM events start right after that commit.
+     */
+    public EventSet getEventSet(String url, Timestamp lastSent, int lastID)
+            throws DatabaseExtractionError, DatabaseNotSupportedError {
+        int pageSize = PreferencesManager.INSTANCE.getDatabasePageSize();
+
         if (connection instanceof ITSRetrieval) {
-            return new ITSEventSet((ITSRetrieval) connection, url, lastSent);
+            return new ITSEventSet((ITSRetrieval) connection, url, lastSent,
+                    pageSize);
         } else if (connection instanceof SCMRetrieval) {
-            return new SCMEventSet((SCMRetrieval) connection, url, lastSent);
+            SCMRetrieval scm = (SCMRetrieval) connection;
+            int batchSize = PreferencesManager.INSTANCE
+                    .getDatabaseSCMBatchSize();
+            String watermark = PreferencesManager.INSTANCE
+                    .getDatabaseSCMWatermark();
+
+            /* Without a commit id to start from, fall back to dates */
+            scm.setWatermarkByID(watermark
+                    .equals(PreferencesManager.WATERMARK_ID)
+                    && (lastID != StructuredKnowledgeSource.NO_ID));
+
+            return new SCMEventSet(scm, url, lastSent, lastID, batchSize,
+                    pageSize);
         } else {
             throw new DatabaseNotSupportedError(connection.getClass().getName());
         }
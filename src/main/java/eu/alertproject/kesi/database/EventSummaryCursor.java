@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.database;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import eu.alertproject.kesi.events.EventSummary;
+import eu.alertproject.kesi.metrics.Metrics;
+
+/**
+ * Iterates over the summary of events of a source retrieving them in
+ * pages of a bounded size. Only one page is kept in memory at a time.
+ * Each page starts right after the last summary of the previous one,
+ * so no rows are skipped or read twice.
+ */
+public class EventSummaryCursor {
+    private final EventSummaryRetrieval conn;
+    private final String url;
+    private final Timestamp lastSent;
+    private final int pageSize;
+    private final LinkedList<EventSummary> page;
+    private EventSummary last;
+    private boolean exhausted;
+
+    public EventSummaryCursor(EventSummaryRetrieval connection, String url,
+            Timestamp lastSent, int pageSize) {
+        this(connection, url, lastSent, null, pageSize);
+    }
+
+    /**
+     * Creates a cursor that starts right after the summary from. When
+     * from is null, it starts with the first event after lastSent.
+     */
+    public EventSummaryCursor(EventSummaryRetrieval connection, String url,
+            Timestamp lastSent, EventSummary from, int pageSize) {
+        this.conn = connection;
+        this.url = url;
+        this.lastSent = lastSent;
+        this.pageSize = pageSize;
+        this.page = new LinkedList<EventSummary>();
+        this.last = from;
+        this.exhausted = false;
+    }
+
+    public boolean hasNext() throws DatabaseExtractionError {
+        if (page.isEmpty() && !exhausted) {
+            fetchPage();
+        }
+
+        return !page.isEmpty();
+    }
+
+    public EventSummary next() throws DatabaseExtractionError {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return page.removeFirst();
+    }
+
+    private void fetchPage() throws DatabaseExtractionError {
+        ArrayList<EventSummary> summaries;
+        long start = System.nanoTime();
+
+        try {
+            summaries = conn.getEventsSummary(url, lastSent, last, pageSize);
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_SUMMARY, start);
+        }
+
+        if (summaries.size() < pageSize) {
+            exhausted = true;
+        }
+
+        if (!summaries.isEmpty()) {
+            last = summaries.get(summaries.size() - 1);
+        }
+
+        page.addAll(summaries);
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.database;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+import eu.alertproject.kesi.events.EventSummary;
+
+public interface EventSummaryRetrieval {
+
+    /**
+     * Returns, at most, limit summaries of the events of the source
+     * identified by url that happened after lastSent. Summaries are
+     * sorted by date and identifier. When from is not null, only the
+     * summaries that follow the summary from are returned; lastSent
+     * is then ignored, so from may be used to resume after a given
+     * event.
+     */
+    public ArrayList<EventSummary> getEventsSummary(String url,
+            Timestamp lastSent, EventSummary from, int limit)
+            throws DatabaseExtractionError;
+
+}
@@ -22,47 +22,70 @@
 package eu.alertproject.kesi.database;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 import javax.xml.bind.JAXBException;
 
 import org.apache.log4j.Logger;
 
+import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.events.Event;
 import eu.alertproject.kesi.events.EventSummary;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.model.Issue;
 
 public class ITSEventSet implements EventSet {
     private static Logger logger = Logger.getLogger(ITSEventSet.class);
 
     private final ITSRetrieval conn;
-    private final ArrayList<EventSummary> events;
+    private final EventSummaryCursor events;
 
     public ITSEventSet(ITSRetrieval connection, String url, Timestamp lastSent)
             throws DatabaseExtractionError {
+        this(connection, url, lastSent, PreferencesManager.DEF_DB_PAGE_SIZE);
+    }
+
+    /**
+     * Summaries of the events are retrieved in pages of pageSize
+     * summaries.
+     */
+    public ITSEventSet(ITSRetrieval connection, String url,
+            Timestamp lastSent, int pageSize) throws DatabaseExtractionError {
         this.conn = connection;
-        this.events = this.conn.getEventsSummary(url, lastSent);
+        this.events = new EventSummaryCursor(connection, url, lastSent,
+                pageSize);
+
+        /* Fetch the first page to report errors as soon as possible */
+        this.events.hasNext();
     }
 
     @Override
     public boolean hasNext() {
-        return !events.isEmpty();
+        try {
+            return events.hasNext();
+        } catch (DatabaseExtractionError e) {
+            String msg = "Error getting summary of issues. " + e.getMessage();
+            logger.error(msg, e);
+            /* Ending here would look like the last event was reached */
+            throw new NoSuchElementException(msg);
+        }
     }
 
     @Override
     public Event next() {
         Issue issue;
+        long start;
 
         try {
-            EventSummary summary = events.remove(0);
-            issue = conn.getIssueFromSummary(summary);
+            issue = fetchIssue(events.next());
         } catch (DatabaseExtractionError e) {
             String msg = "Error getting issues. " + e.getMessage();
             logger.error(msg, e);
             throw new NoSuchElementException(msg);
         }
 
+        start = System.nanoTime();
+
         try {
             return issue.toEvent();
         } catch (JAXBException e) {
@@ -70,6 +93,23 @@ public class ITSEventSet implements EventSet {
                     + " to XML.";
             logger.error(msg, e);
             throw new NoSuchElementException(msg);
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_MARSHAL, start);
+        }
+    }
+
+    /*
+     * Summaries are timed by the cursor, so hydration is timed only
+     * once they have been retrieved
+     */
+    private Issue fetchIssue(EventSummary summary)
+            throws DatabaseExtractionError {
+        long start = System.nanoTime();
+
+        try {
+            return conn.getIssueFromSummary(summary);
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_HYDRATION, start);
         }
     }
 
@@ -29,7 +29,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 
@@ -40,7 +39,8 @@ import eu.alertproject.kesi.model.Issue;
 import eu.alertproject.kesi.model.IssueTracker;
 import eu.alertproject.kesi.model.Person;
 
-public abstract class ITSRetrieval extends Database {
+public abstract class ITSRetrieval extends Database implements
+        EventSummaryRetrieval {
     /* Event summary types */
     private static final String EVENT_TYPE_ISSUE = "issue";
     private static final String EVENT_TYPE_COMMENT = "comment";
@@ -72,6 +72,8 @@ public abstract class ITSRetrieval extends Database {
     private static final String ITS_PERSON_EMAIL = "email";
     private static final String ITS_PERSON_USER_ID = "user_id";
 
+    private static final String ITS_PERSON_ID = "id";
+
     /* Tracker row fields */
     private static final String ITS_TRACKER_ID = "tracker_id";
     private static final String ITS_TRACKER_TYPE = "name";
@@ -84,15 +86,28 @@ public abstract class ITSRetrieval extends Database {
     private static final String ITS_ACTIVITY_OLD = "old_value";
     private static final String ITS_ACTIVITY_NEW = "new_value";
 
-    /* ITS generic queries */
-    private static final String ITS_QUERY_EVENTS = "SELECT log.id event_id, log.issue_id issue_id, log.date date, log.type type FROM "
-            + "((SELECT id, issue_id, date, 'issue' type FROM issues_log GROUP BY issue_id ORDER BY date) "
-            + "UNION "
-            + "(SELECT id, issue_id, submitted_on date, 'comment' type FROM comments) "
-            + "UNION "
-            + "(SELECT id, issue_id, changed_on date, 'change' type FROM changes)) log, issues i, trackers t "
-            + "WHERE log.issue_id = i.id AND i.tracker_id = t.id "
-            + "AND t.url = ? AND log.date > ? ORDER BY log.date";
+    /*
+     * ITS event summary queries. Each table is queried on its own so
+     * the tracker and date conditions are applied using the indexes of
+     * the table. Rows are returned after the point given by the
+     * (date, id) pair, sorted by date and id.
+     */
+    private static final String ITS_QUERY_EVENTS_ISSUES = "SELECT l.id event_id, l.issue_id issue_id, l.date date, 'issue' type "
+            + "FROM issues_log l, issues i, trackers t "
+            + "WHERE l.issue_id = i.id AND i.tracker_id = t.id AND t.url = ? "
+            + "AND (l.date > ? OR (l.date = ? AND l.id > ?)) "
+            + "AND l.id = (SELECT MIN(f.id) FROM issues_log f WHERE f.issue_id = l.issue_id) "
+            + "ORDER BY l.date, l.id LIMIT ?";
+    private static final String ITS_QUERY_EVENTS_COMMENTS = "SELECT c.id event_id, c.issue_id issue_id, c.submitted_on date, 'comment' type "
+            + "FROM comments c, issues i, trackers t "
+            + "WHERE c.issue_id = i.id AND i.tracker_id = t.id AND t.url = ? "
+            + "AND (c.submitted_on > ? OR (c.submitted_on = ? AND c.id > ?)) "
+            + "ORDER BY c.submitted_on, c.id LIMIT ?";
+    private static final String ITS_QUERY_EVENTS_CHANGES = "SELECT c.id event_id, c.issue_id issue_id, c.changed_on date, 'change' type "
+            + "FROM changes c, issues i, trackers t "
+            + "WHERE c.issue_id = i.id AND i.tracker_id = t.id AND t.url = ? "
+            + "AND (c.changed_on > ? OR (c.changed_on = ? AND c.id > ?)) "
+            + "ORDER BY c.changed_on, c.id LIMIT ?";
     private static final String ITS_QUERY_EVENT_NEW_ISSUE = "SELECT issue_id id, issue, summary, description,"
             + "status, resolution, priority, submitted_by, date submitted_on,"
             + "assigned_to, type, tracker_id "
@@ -114,13 +129,14 @@ public abstract class ITSRetrieval extends Database {
             + "AND trackers.id = issues.tracker_id AND issues.id = ?";
     private static final String ITS_QUERY_PERSON = "SELECT name, email, user_id "
             + "FROM people WHERE id = ?";
+    private static final String ITS_QUERY_ALL_PEOPLE = "SELECT id, name, email, user_id FROM people";
 
     /* Logger */
     private static Logger itsDBLogger = Logger.getLogger(ITSRetrieval.class);
 
     /* Cache */
-    private final HashMap<Integer, Person> people;
-    private final HashMap<Integer, IssueTracker> trackers;
+    private final EntityCache<Person> people;
+    private final EntityCache<IssueTracker> trackers;
 
     /* Abstract methods */
     public abstract Issue getEventIssueNew(int issueID)
@@ -149,36 +165,35 @@ public abstract class ITSRetrieval extends Database {
             throws DriverNotSupportedError, DatabaseConnectionError {
         super(driver, username, password, host, port, database);
         super.logger = itsDBLogger;
-        people = new HashMap<Integer, Person>();
-        trackers = new HashMap<Integer, IssueTracker>();
+        people = EntityCaches.INSTANCE.getPeople();
+        trackers = EntityCaches.INSTANCE.getTrackers();
+
+        if (EntityCaches.INSTANCE.shouldPreloadPeople(getURL())) {
+            preloadPeople();
+        }
     }
 
+    /**
+     * Summaries are sorted by date, type and identifier, where issues
+     * go before comments and comments before changes. Each type is
+     * retrieved with one query and the lists are merged, keeping the
+     * first limit summaries.
+     */
+    @Override
     public ArrayList<EventSummary> getEventsSummary(String trackerURL,
-            Timestamp lastSent) throws DatabaseExtractionError {
-        ArrayList<EventSummary> events = new ArrayList<EventSummary>();
-
-        try {
-            PreparedStatement stmt;
-            ResultSet rs;
-
-            stmt = prepareStatement(ITS_QUERY_EVENTS);
-            stmt.setString(1, trackerURL);
-            stmt.setString(2, Database.dateToString(lastSent));
-            rs = executeQuery(stmt);
-
-            while (rs.next()) {
-                EventSummary summary = createEventSummary(rs);
-                events.add(summary);
-            }
+            Timestamp lastSent, EventSummary from, int limit)
+            throws DatabaseExtractionError {
+        ArrayList<ArrayList<EventSummary>> lists = new ArrayList<ArrayList<EventSummary>>();
 
-            stmt.close();
+        /* Sorted by type order: issue, comment, change */
+        lists.add(getTableEventsSummary(ITS_QUERY_EVENTS_ISSUES,
+                EventSummary.ISSUE_NEW, trackerURL, lastSent, from, limit));
+        lists.add(getTableEventsSummary(ITS_QUERY_EVENTS_COMMENTS,
+                EventSummary.ISSUE_COMMENT, trackerURL, lastSent, from, limit));
+        lists.add(getTableEventsSummary(ITS_QUERY_EVENTS_CHANGES,
+                EventSummary.ISSUE_CHANGE, trackerURL, lastSent, from, limit));
 
-            return events;
-        } catch (SQLException e) {
-            String msg = "Error getting summary of issues. " + e.getMessage();
-            logger.error(msg, e);
-            throw new DatabaseExtractionError(msg);
-        }
+        return mergeEventsSummary(lists, limit);
     }
 
     public Issue getIssueFromSummary(EventSummary summary)
@@ -380,8 +395,10 @@ public abstract class ITSRetrieval extends Database {
         PreparedStatement stmt;
         ResultSet rs;
 
-        if (trackers.containsKey(trackerID)) {
-            return trackers.get(trackerID);
+        tracker = trackers.get(getURL(), trackerID);
+
+        if (tracker != null) {
+            return tracker;
         }
 
         stmt = prepareStatement(ITS_QUERY_TRACKER);
@@ -408,13 +425,12 @@ public abstract class ITSRetrieval extends Database {
         rs.first();
 
         trackerID = rs.getInt(ITS_TRACKER_ID);
+        tracker = trackers.get(getURL(), trackerID);
 
-        if (trackers.containsKey(trackerID)) {
-            return trackers.get(trackerID);
+        if (tracker == null) {
+            tracker = createTracker(trackerID, rs);
         }
 
-        tracker = createTracker(trackerID, rs);
-
         stmt.close();
 
         return tracker;
@@ -439,21 +455,20 @@ public abstract class ITSRetrieval extends Database {
 
         tracker = new IssueTracker(Integer.toString(trackerID), trackerURI,
                 trackerType);
-        trackers.put(trackerID, tracker);
+        trackers.put(getURL(), trackerID, tracker);
 
         return tracker;
     }
 
     protected Person getPerson(int userID) throws SQLException {
-        String name;
-        String email;
-        String userITS;
         Person person;
         PreparedStatement stmt;
         ResultSet rs;
 
-        if (people.containsKey(userID)) {
-            return people.get(userID);
+        person = people.get(getURL(), userID);
+
+        if (person != null) {
+            return person;
         }
 
         stmt = prepareStatement(ITS_QUERY_PERSON);
@@ -462,18 +477,173 @@ public abstract class ITSRetrieval extends Database {
 
         rs.first();
 
+        person = createPerson(userID, rs);
+
+        stmt.close();
+
+        return person;
+    }
+
+    protected Person createPerson(int userID, ResultSet rs)
+            throws SQLException {
+        String name;
+        String email;
+        String userITS;
+        Person person;
+
         name = rs.getString(ITS_PERSON_NAME);
         email = rs.getString(ITS_PERSON_EMAIL);
         userITS = rs.getString(ITS_PERSON_USER_ID);
 
-        stmt.close();
-
         person = new Person(name, email, userITS);
-        people.put(userID, person);
+        people.put(getURL(), userID, person);
 
         return person;
     }
 
+    /*
+     * Fills the people cache with the whole people table. Errors are
+     * only logged; people will be retrieved when they are needed.
+     */
+    protected void preloadPeople() {
+        try {
+            PreparedStatement stmt;
+            ResultSet rs;
+            int n = 0;
+
+            stmt = prepareStatement(ITS_QUERY_ALL_PEOPLE);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                createPerson(rs.getInt(ITS_PERSON_ID), rs);
+                ++n;
+            }
+
+            stmt.close();
+
+            logger.debug(n + " people preloaded");
+        } catch (SQLException e) {
+            logger.error("Error preloading people", e);
+        }
+    }
+
+    /*
+     * Runs the summary query of a table. The position of the type of
+     * the table with respect to the type of from decides whether rows
+     * with the same date as from are included.
+     */
+    private ArrayList<EventSummary> getTableEventsSummary(String query,
+            int type, String trackerURL, Timestamp lastSent,
+            EventSummary from, int limit) throws DatabaseExtractionError {
+        ArrayList<EventSummary> events = new ArrayList<EventSummary>();
+        Timestamp date;
+        int id;
+
+        if (from == null) {
+            date = lastSent;
+            id = Integer.MAX_VALUE;
+        } else {
+            int cmp = getEventTypeOrder(type)
+                    - getEventTypeOrder(from.getType());
+
+            date = from.getDate();
+
+            if (cmp > 0) {
+                id = 0;
+            } else if (cmp == 0) {
+                id = from.getEventID();
+            } else {
+                id = Integer.MAX_VALUE;
+            }
+        }
+
+        try {
+            PreparedStatement stmt;
+            ResultSet rs;
+
+            stmt = prepareStatement(query);
+            stmt.setString(1, trackerURL);
+            stmt.setTimestamp(2, date);
+            stmt.setTimestamp(3, date);
+            stmt.setInt(4, id);
+            stmt.setInt(5, limit);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                EventSummary summary = createEventSummary(rs);
+                events.add(summary);
+            }
+
+            stmt.close();
+
+            return events;
+        } catch (SQLException e) {
+            String msg = "Error getting summary of issues. " + e.getMessage();
+            logger.error(msg, e);
+            throw new DatabaseExtractionError(msg);
+        }
+    }
+
+    /*
+     * Merges lists of summaries sorted by date and identifier. Lists
+     * must be given sorted by the order of their type.
+     */
+    private static ArrayList<EventSummary> mergeEventsSummary(
+            ArrayList<ArrayList<EventSummary>> lists, int limit) {
+        ArrayList<EventSummary> events = new ArrayList<EventSummary>();
+        int[] next = new int[lists.size()];
+
+        while (events.size() < limit) {
+            EventSummary first = null;
+            int selected = -1;
+
+            for (int i = 0; i < lists.size(); i++) {
+                ArrayList<EventSummary> list = lists.get(i);
+                EventSummary summary;
+
+                if (next[i] == list.size()) {
+                    continue;
+                }
+
+                summary = list.get(next[i]);
+
+                /* On ties, the list with the lower type order goes first */
+                if ((first == null)
+                        || (summary.getDate().compareTo(first.getDate()) < 0)) {
+                    first = summary;
+                    selected = i;
+                }
+            }
+
+            if (first == null) {
+                break;
+            }
+
+            events.add(first);
+            ++next[selected];
+        }
+
+        return events;
+    }
+
+    /*
+     * Position of a type of event among events with the same date:
+     * an issue is created before it is commented or changed.
+     */
+    private static int getEventTypeOrder(int type)
+            throws DatabaseExtractionError {
+        if (type == EventSummary.ISSUE_NEW) {
+            return 0;
+        } else if (type == EventSummary.ISSUE_COMMENT) {
+            return 1;
+        } else if (type == EventSummary.ISSUE_CHANGE) {
+            return 2;
+        } else {
+            String msg = "Invalid type of event " + type;
+            throw new DatabaseExtractionError(msg);
+        }
+    }
+
     private EventSummary createEventSummary(ResultSet rs)
             throws DatabaseExtractionError {
         int eventID;
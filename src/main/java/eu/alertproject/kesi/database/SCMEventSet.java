@@ -23,47 +23,102 @@ package eu.alertproject.kesi.database;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
 import javax.xml.bind.JAXBException;
 
 import org.apache.log4j.Logger;
 
+import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.events.Event;
 import eu.alertproject.kesi.events.EventSummary;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.model.Commit;
+import eu.alertproject.kesi.model.StructuredKnowledgeSource;
 
 public class SCMEventSet implements EventSet {
 
     private static Logger logger = Logger.getLogger(SCMEventSet.class);
 
     private final SCMRetrieval conn;
-    private final ArrayList<EventSummary> events;
+    private final EventSummaryCursor events;
+    private final LinkedList<Commit> commits;
+    private final int batchSize;
 
     public SCMEventSet(SCMRetrieval connection, String url, Timestamp lastSent)
             throws DatabaseExtractionError {
+        this(connection, url, lastSent, StructuredKnowledgeSource.NO_ID, 1,
+                PreferencesManager.DEF_DB_PAGE_SIZE);
+    }
+
+    /**
+     * When batchSize is greater than one, commits are retrieved in
+     * windows of batchSize commits using batch queries. Windows are not
+     * split, so batchSize is limited to the number of values allowed on
+     * the IN clauses of those queries. Summaries of the events are
+     * retrieved in pages of pageSize summaries. When lastID is not
+     * NO_ID, events start right after the commit lastID sent on
+     * lastSent.
+     */
+    public SCMEventSet(SCMRetrieval connection, String url,
+            Timestamp lastSent, int lastID, int batchSize, int pageSize)
+            throws DatabaseExtractionError {
+        EventSummary from = null;
+
+        if (lastID != StructuredKnowledgeSource.NO_ID) {
+            from = new EventSummary(lastID, EventSummary.COMMIT_NEW, lastSent);
+            from.setEventKey(lastID);
+        }
+
         this.conn = connection;
-        this.events = this.conn.getEventsSummary(url, lastSent);
+        this.events = new EventSummaryCursor(connection, url, lastSent, from,
+                pageSize);
+        this.commits = new LinkedList<Commit>();
+        this.batchSize = Math.min(batchSize, SCMRetrieval.MAX_BATCH_VALUES);
+
+        /* Fetch the first page to report errors as soon as possible */
+        this.events.hasNext();
     }
 
     @Override
     public boolean hasNext() {
-        return !events.isEmpty();
+        if (!commits.isEmpty()) {
+            return true;
+        }
+
+        try {
+            return events.hasNext();
+        } catch (DatabaseExtractionError e) {
+            String msg = "Error getting summary of commits. " + e.getMessage();
+            logger.error(msg, e);
+            /* Ending here would look like the last event was reached */
+            throw new NoSuchElementException(msg);
+        }
     }
 
     @Override
     public Event next() {
         Commit commit;
+        long start;
 
         try {
-            EventSummary summary = events.remove(0);
-            commit = conn.getCommitFromSummary(summary);
+            if (batchSize > 1) {
+                if (commits.isEmpty()) {
+                    fetchCommits(nextWindow());
+                }
+                commit = commits.removeFirst();
+            } else {
+                commit = fetchCommit(events.next());
+            }
         } catch (DatabaseExtractionError e) {
-            String msg = "Error getting issues. " + e.getMessage();
+            String msg = "Error getting commits. " + e.getMessage();
             logger.error(msg, e);
             throw new NoSuchElementException(msg);
         }
 
+        start = System.nanoTime();
+
         try {
             return commit.toEvent();
         } catch (JAXBException e) {
@@ -71,10 +126,53 @@ public class SCMEventSet implements EventSet {
                     + " to XML.";
             logger.error(msg, e);
             throw new NoSuchElementException(msg);
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_MARSHAL, start);
         }
 
     }
 
+    private ArrayList<EventSummary> nextWindow()
+            throws DatabaseExtractionError {
+        ArrayList<EventSummary> window = new ArrayList<EventSummary>();
+
+        while (window.size() < batchSize && events.hasNext()) {
+            window.add(events.next());
+        }
+
+        if (window.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+
+        return window;
+    }
+
+    /*
+     * Summaries are timed by the cursor, so hydration is timed only
+     * once they have been retrieved
+     */
+    private void fetchCommits(ArrayList<EventSummary> window)
+            throws DatabaseExtractionError {
+        long start = System.nanoTime();
+
+        try {
+            commits.addAll(conn.getCommitsFromSummaries(window));
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_HYDRATION, start);
+        }
+    }
+
+    private Commit fetchCommit(EventSummary summary)
+            throws DatabaseExtractionError {
+        long start = System.nanoTime();
+
+        try {
+            return conn.getCommitFromSummary(summary);
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_HYDRATION, start);
+        }
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
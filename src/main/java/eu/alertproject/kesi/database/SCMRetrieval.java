@@ -28,7 +28,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
@@ -40,7 +45,8 @@ import eu.alertproject.kesi.model.Function;
 import eu.alertproject.kesi.model.Module;
 import eu.alertproject.kesi.model.Person;
 
-public class SCMRetrieval extends Database {
+public class SCMRetrieval extends Database implements
+        EventSummaryRetrieval {
     /* Event summary types */
     private static final String EVENT_TYPE_COMMIT = "commit";
 
@@ -71,6 +77,11 @@ public class SCMRetrieval extends Database {
     private static final String SCM_PERSON_NAME = "name";
     private static final String SCM_PERSON_EMAIL = "email";
 
+    /* Batch row fields */
+    private static final String SCM_BATCH_ID = "id";
+    private static final String SCM_BATCH_COMMIT_ID = "commit_id";
+    private static final String SCM_BATCH_FILE_ID = "file_id";
+
     /* Repository row fields */
     private static final String SCM_REPOSITORY_URI = "uri";
 
@@ -83,20 +94,32 @@ public class SCMRetrieval extends Database {
 
     /* Module and function row fields */
     private static final String SCM_MODULE_ID = "id";
+    private static final String SCM_MODULE_FILE_ID = "file_id";
+    private static final String SCM_MODULE_COMMIT_ID = "commit_id";
+    private static final String SCM_FUNCTION_MODULE_ID = "module_id";
     private static final String SCM_MODULE_NAME = "name";
     private static final String SCM_FUNCTION_HEADER = "header";
     private static final String SCM_SRC_START_LINE = "start_line";
     private static final String SCM_SRC_END_LINE = "end_line";
 
     /* SCM generic queries */
-    private static final String SCM_QUERY_EVENTS = "SELECT log.id event_id, log.id commit_id, log.date date, 'commit' "
+    private static final String SCM_QUERY_EVENTS_PAGE = "SELECT log.id event_id, log.id commit_id, log.date date, 'commit' "
+            + "FROM scmlog log, repositories r WHERE log.repository_id = r.id "
+            + "AND r.uri = ? AND log.date > ? ORDER BY log.date, log.id LIMIT ?";
+    private static final String SCM_QUERY_EVENTS_NEXT_PAGE = "SELECT log.id event_id, log.id commit_id, log.date date, 'commit' "
             + "FROM scmlog log, repositories r WHERE log.repository_id = r.id "
-            + "AND r.uri = ? AND log.date > ? ORDER BY log.date";
+            + "AND r.uri = ? "
+            + "AND (log.date > ? OR (log.date = ? AND log.id > ?)) "
+            + "ORDER BY log.date, log.id LIMIT ?";
+    private static final String SCM_QUERY_EVENTS_AFTER_ID = "SELECT log.id event_id, log.id commit_id, log.date date, 'commit' "
+            + "FROM scmlog log, repositories r WHERE log.repository_id = r.id "
+            + "AND r.uri = ? AND log.id > ? ORDER BY log.id LIMIT ?";
     private static final String SCM_QUERY_COMMIT = "SELECT rev, date, message,"
             + "author_id, committer_id, repository_id "
             + "FROM scmlog WHERE id = ?";
     private static final String SCM_QUERY_PERSON = "SELECT name, email "
             + "FROM people WHERE id = ?";
+    private static final String SCM_QUERY_ALL_PEOPLE = "SELECT id, name, email FROM people";
     private static final String SCM_QUERY_REPOSITORY = "SELECT uri FROM repositories WHERE id = ?";
     private static final String SCM_QUERY_FILE = "SELECT f.id id "
             + "FROM files f, actions a WHERE f.id = a.file_id AND a.commit_id = ?";
@@ -111,33 +134,96 @@ public class SCMRetrieval extends Database {
     private static final String SCM_QUERY_FUNCTIONS = "SELECT header, start_line, end_line "
             + "FROM functions_src WHERE module_id= ?";
 
+    /*
+     * SCM batch queries. They retrieve the data of a set of commits
+     * at once. '%s' will be replaced by the list of placeholders.
+     */
+    private static final String SCM_QUERY_BATCH_COMMITS = "SELECT id, rev, date, message, "
+            + "author_id, committer_id, repository_id "
+            + "FROM scmlog WHERE id IN (%s)";
+    private static final String SCM_QUERY_BATCH_PEOPLE = "SELECT id, name, email "
+            + "FROM people WHERE id IN (%s)";
+    private static final String SCM_QUERY_BATCH_ACTIONS = "SELECT a.commit_id commit_id, a.file_id file_id, "
+            + "a.type type, b.name name FROM actions a, branches b "
+            + "WHERE a.branch_id = b.id AND a.commit_id IN (%s) "
+            + "ORDER BY a.commit_id, a.id";
+    private static final String SCM_QUERY_BATCH_FILE_PATHS = "SELECT file_id, commit_id, file_path "
+            + "FROM file_links WHERE file_id IN (%s) AND commit_id <= ?";
+    private static final String SCM_QUERY_BATCH_MODULES = "SELECT id, file_id, commit_id, name, start_line, end_line "
+            + "FROM modules_src WHERE commit_id IN (%s) ORDER BY id";
+    private static final String SCM_QUERY_BATCH_FUNCTIONS = "SELECT module_id, header, start_line, end_line "
+            + "FROM functions_src WHERE module_id IN (%s)";
+
+    /* Max number of values on IN clauses */
+    static final int MAX_BATCH_VALUES = 1000;
+
     private static Logger scmDBLogger = Logger.getLogger(SCMRetrieval.class);
 
     /* Person cache */
-    private final HashMap<Integer, Person> people;
+    private final EntityCache<Person> people;
     /* Repositories cache */
-    private final HashMap<Integer, URI> repositories;
+    private final EntityCache<URI> repositories;
+
+    /* Page summaries by commit id instead of by date */
+    private boolean watermarkByID;
 
     public SCMRetrieval(String driver, String username, String password,
             String host, String port, String database)
             throws DriverNotSupportedError, DatabaseConnectionError {
         super(driver, username, password, host, port, database);
         super.logger = scmDBLogger;
-        people = new HashMap<Integer, Person>();
-        repositories = new HashMap<Integer, URI>();
+        people = EntityCaches.INSTANCE.getPeople();
+        repositories = EntityCaches.INSTANCE.getRepositories();
+        watermarkByID = false;
+
+        if (EntityCaches.INSTANCE.shouldPreloadPeople(getURL())) {
+            preloadPeople();
+        }
+    }
+
+    /**
+     * When set, summaries of events are sorted and paged by commit id,
+     * ignoring dates. Commits are stored with increasing ids, so new
+     * commits are found using the primary key even when their dates
+     * are older than the last one sent.
+     */
+    public void setWatermarkByID(boolean watermarkByID) {
+        this.watermarkByID = watermarkByID;
     }
 
+    public boolean isWatermarkByID() {
+        return watermarkByID;
+    }
+
+    @Override
     public ArrayList<EventSummary> getEventsSummary(String repositoryURL,
-            Timestamp lastSent) throws DatabaseExtractionError {
+            Timestamp lastSent, EventSummary from, int limit)
+            throws DatabaseExtractionError {
         ArrayList<EventSummary> events = new ArrayList<EventSummary>();
 
         try {
             PreparedStatement stmt;
             ResultSet rs;
 
-            stmt = prepareStatement(SCM_QUERY_EVENTS);
-            stmt.setString(1, repositoryURL);
-            stmt.setString(2, Database.dateToString(lastSent));
+            if (watermarkByID) {
+                stmt = prepareStatement(SCM_QUERY_EVENTS_AFTER_ID);
+                stmt.setString(1, repositoryURL);
+                stmt.setInt(2, from == null ? 0 : from.getEventID());
+                stmt.setInt(3, limit);
+            } else if (from == null) {
+                stmt = prepareStatement(SCM_QUERY_EVENTS_PAGE);
+                stmt.setString(1, repositoryURL);
+                stmt.setTimestamp(2, lastSent);
+                stmt.setInt(3, limit);
+            } else {
+                stmt = prepareStatement(SCM_QUERY_EVENTS_NEXT_PAGE);
+                stmt.setString(1, repositoryURL);
+                stmt.setTimestamp(2, from.getDate());
+                stmt.setTimestamp(3, from.getDate());
+                stmt.setInt(4, from.getEventID());
+                stmt.setInt(5, limit);
+            }
+
             rs = executeQuery(stmt);
 
             while (rs.next()) {
@@ -149,7 +235,7 @@ public class SCMRetrieval extends Database {
 
             return events;
         } catch (SQLException e) {
-            String msg = "Error getting summary of issues. " + e.getMessage();
+            String msg = "Error getting summary of commits. " + e.getMessage();
             logger.error(msg, e);
             throw new DatabaseExtractionError(msg);
         }
@@ -174,6 +260,56 @@ public class SCMRetrieval extends Database {
         return commit;
     }
 
+    /**
+     * Retrieves the commits of a set of summaries using a few queries
+     * per set instead of several queries per file and module. Commits
+     * are returned in the same order of the summaries.
+     */
+    public ArrayList<Commit> getCommitsFromSummaries(
+            List<EventSummary> summaries) throws DatabaseExtractionError {
+        ArrayList<Integer> commitIDs;
+        ArrayList<Commit> commits;
+        HashMap<Integer, Commit> retrieved;
+
+        commitIDs = new ArrayList<Integer>();
+
+        for (EventSummary summary : summaries) {
+            int type = summary.getType();
+
+            if (type != EventSummary.COMMIT_NEW) {
+                String msg = "Invalid event type " + type;
+                throw new DatabaseExtractionError(msg);
+            }
+
+            commitIDs.add(summary.getEventKey());
+        }
+
+        try {
+            retrieved = getEventCommitsNew(commitIDs);
+        } catch (SQLException e) {
+            String msg = "Error getting commits " + commitIDs + "."
+                    + e.getMessage();
+            logger.error(msg, e);
+            throw new DatabaseExtractionError(msg);
+        }
+
+        commits = new ArrayList<Commit>();
+
+        for (int commitID : commitIDs) {
+            Commit commit = retrieved.get(commitID);
+
+            if (commit == null) {
+                String msg = "Error getting commit " + commitID
+                        + ". Commit not found.";
+                throw new DatabaseExtractionError(msg);
+            }
+
+            commits.add(commit);
+        }
+
+        return commits;
+    }
+
     protected Commit getEventCommitNew(int commitID)
             throws DatabaseExtractionError {
         try {
@@ -230,15 +366,14 @@ public class SCMRetrieval extends Database {
     }
 
     protected Person getPerson(int userID) throws SQLException {
-        String name;
-        String email;
-        String id;
         Person person;
         PreparedStatement stmt;
         ResultSet rs;
 
-        if (people.containsKey(userID)) {
-            return people.get(userID);
+        person = people.get(getURL(), userID);
+
+        if (person != null) {
+            return person;
         }
 
         stmt = prepareStatement(SCM_QUERY_PERSON);
@@ -246,16 +381,28 @@ public class SCMRetrieval extends Database {
         rs = executeQuery(stmt);
         rs.first();
 
-        name = rs.getString(SCM_PERSON_NAME);
-        email = rs.getString(SCM_PERSON_EMAIL);
+        person = createPerson(userID, rs);
 
         stmt.close();
 
+        return person;
+    }
+
+    protected Person createPerson(int userID, ResultSet rs)
+            throws SQLException {
+        String name;
+        String email;
+        String id;
+        Person person;
+
+        name = rs.getString(SCM_PERSON_NAME);
+        email = rs.getString(SCM_PERSON_EMAIL);
+
         id = (email == null ? name : email);
 
         person = new Person(name, email, id);
 
-        people.put(userID, person);
+        people.put(getURL(), userID, person);
 
         return person;
     }
@@ -265,8 +412,10 @@ public class SCMRetrieval extends Database {
         PreparedStatement stmt;
         ResultSet rs;
 
-        if (repositories.containsKey(repoID)) {
-            return repositories.get(repoID);
+        uri = repositories.get(getURL(), repoID);
+
+        if (uri != null) {
+            return uri;
         }
 
         stmt = prepareStatement(SCM_QUERY_REPOSITORY);
@@ -284,7 +433,7 @@ public class SCMRetrieval extends Database {
 
         stmt.close();
 
-        repositories.put(repoID, uri);
+        repositories.put(getURL(), repoID, uri);
 
         return uri;
     }
@@ -357,7 +506,6 @@ public class SCMRetrieval extends Database {
 
     protected String getAction(int fileID, int commitID) throws SQLException {
         String actionType;
-        String action;
         PreparedStatement stmt;
         ResultSet rs;
 
@@ -371,6 +519,12 @@ public class SCMRetrieval extends Database {
 
         stmt.close();
 
+        return toAction(actionType);
+    }
+
+    protected String toAction(String actionType) {
+        String action;
+
         if (actionType.equals(SCM_ADD_ACTION)) {
             action = Action.ADD;
         } else if (actionType.equals(SCM_COPY_ACTION)) {
@@ -465,6 +619,320 @@ public class SCMRetrieval extends Database {
         return functions;
     }
 
+    protected HashMap<Integer, Commit> getEventCommitsNew(
+            List<Integer> commitIDs) throws SQLException {
+        HashMap<Integer, Commit> commits;
+        ArrayList<CommitRow> rows;
+        HashSet<Integer> peopleIDs;
+        PreparedStatement stmt;
+        ResultSet rs;
+
+        commits = new HashMap<Integer, Commit>();
+
+        if (commitIDs.isEmpty()) {
+            return commits;
+        }
+
+        rows = new ArrayList<CommitRow>();
+        peopleIDs = new HashSet<Integer>();
+
+        stmt = prepareBatchStatement(SCM_QUERY_BATCH_COMMITS, commitIDs);
+        rs = executeQuery(stmt);
+
+        while (rs.next()) {
+            CommitRow row = new CommitRow();
+
+            row.commitID = rs.getInt(SCM_BATCH_ID);
+            row.repoID = rs.getInt(SCM_COMMIT_REPO);
+            row.message = rs.getString(SCM_COMMIT_MSG);
+            row.revision = rs.getString(SCM_COMMIT_REVISION);
+            row.date = rs.getTimestamp(SCM_COMMIT_DATE);
+            row.authorID = rs.getInt(SCM_AUTHOR_ID);
+            row.hasAuthor = !rs.wasNull();
+            row.committerID = rs.getInt(SCM_COMMITTER_ID);
+
+            if (row.hasAuthor) {
+                peopleIDs.add(row.authorID);
+            }
+            peopleIDs.add(row.committerID);
+
+            rows.add(row);
+        }
+
+        stmt.close();
+
+        loadPeople(peopleIDs);
+
+        for (CommitRow row : rows) {
+            Person author = (row.hasAuthor ? getPerson(row.authorID) : null);
+            Person committer = getPerson(row.committerID);
+            Commit commit = new Commit(row.message, row.date.toString(),
+                    row.revision, author, committer, row.commitID);
+
+            commit.setRepositoryURI(getRepositoryURI(row.repoID));
+            commits.put(row.commitID, commit);
+        }
+
+        addFiles(commits, commitIDs);
+
+        return commits;
+    }
+
+    /*
+     * Fills the people cache with the whole people table. Errors are
+     * only logged; people will be retrieved when they are needed.
+     */
+    protected void preloadPeople() {
+        try {
+            PreparedStatement stmt;
+            ResultSet rs;
+            int n = 0;
+
+            stmt = prepareStatement(SCM_QUERY_ALL_PEOPLE);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                createPerson(rs.getInt(SCM_BATCH_ID), rs);
+                ++n;
+            }
+
+            stmt.close();
+
+            logger.debug(n + " people preloaded");
+        } catch (SQLException e) {
+            logger.error("Error preloading people", e);
+        }
+    }
+
+    protected void loadPeople(Collection<Integer> peopleIDs)
+            throws SQLException {
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+
+        for (int userID : peopleIDs) {
+            if (!people.contains(getURL(), userID)) {
+                missing.add(userID);
+            }
+        }
+
+        for (int i = 0; i < missing.size(); i += MAX_BATCH_VALUES) {
+            List<Integer> ids;
+            PreparedStatement stmt;
+            ResultSet rs;
+
+            ids = missing.subList(i,
+                    Math.min(i + MAX_BATCH_VALUES, missing.size()));
+
+            stmt = prepareBatchStatement(SCM_QUERY_BATCH_PEOPLE, ids);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                createPerson(rs.getInt(SCM_BATCH_ID), rs);
+            }
+
+            stmt.close();
+        }
+    }
+
+    protected void addFiles(HashMap<Integer, Commit> commits,
+            List<Integer> commitIDs) throws SQLException {
+        ArrayList<int[]> fileRows;
+        HashMap<String, String> actions;
+        HashMap<Integer, String> branches;
+        HashSet<Integer> fileIDs;
+        HashMap<Integer, TreeMap<Integer, String>> paths;
+        HashMap<String, ArrayList<Module>> modules;
+        int maxCommitID = 0;
+        PreparedStatement stmt;
+        ResultSet rs;
+
+        /* Actions and branches */
+        fileRows = new ArrayList<int[]>();
+        actions = new HashMap<String, String>();
+        branches = new HashMap<Integer, String>();
+        fileIDs = new HashSet<Integer>();
+
+        stmt = prepareBatchStatement(SCM_QUERY_BATCH_ACTIONS, commitIDs);
+        rs = executeQuery(stmt);
+
+        while (rs.next()) {
+            int commitID = rs.getInt(SCM_BATCH_COMMIT_ID);
+            int fileID = rs.getInt(SCM_BATCH_FILE_ID);
+            String key = fileKey(fileID, commitID);
+
+            fileRows.add(new int[] { commitID, fileID });
+            fileIDs.add(fileID);
+            maxCommitID = Math.max(maxCommitID, commitID);
+
+            if (!actions.containsKey(key)) {
+                actions.put(key, rs.getString(SCM_ACTION_TYPE));
+            }
+
+            if (!branches.containsKey(commitID)) {
+                branches.put(commitID, rs.getString(SCM_BRANCH_NAME));
+            }
+        }
+
+        stmt.close();
+
+        if (fileRows.isEmpty()) {
+            return;
+        }
+
+        paths = getFilePaths(new ArrayList<Integer>(fileIDs), maxCommitID);
+        modules = getCommitsModules(commitIDs);
+
+        for (int[] fileRow : fileRows) {
+            int commitID = fileRow[0];
+            int fileID = fileRow[1];
+            String key = fileKey(fileID, commitID);
+            TreeMap<Integer, String> links = paths.get(fileID);
+            Map.Entry<Integer, String> link;
+            File file;
+
+            link = (links == null ? null : links.floorEntry(commitID));
+
+            if (link == null) {
+                throw new SQLException("File path not found for file "
+                        + fileID + " on commit " + commitID);
+            }
+
+            file = new File(link.getValue());
+            file.setSimpleAction(toAction(actions.get(key)));
+            file.setBranch(branches.get(commitID));
+
+            if (modules.containsKey(key)) {
+                for (Module module : modules.get(key)) {
+                    file.addModule(module);
+                }
+            }
+
+            commits.get(commitID).addFile(file);
+        }
+    }
+
+    /*
+     * Returns the history of paths of the given files, indexed by
+     * file and commit, up to the given commit
+     */
+    protected HashMap<Integer, TreeMap<Integer, String>> getFilePaths(
+            List<Integer> fileIDs, int maxCommitID) throws SQLException {
+        HashMap<Integer, TreeMap<Integer, String>> paths;
+
+        paths = new HashMap<Integer, TreeMap<Integer, String>>();
+
+        for (int i = 0; i < fileIDs.size(); i += MAX_BATCH_VALUES) {
+            List<Integer> ids;
+            PreparedStatement stmt;
+            ResultSet rs;
+
+            ids = fileIDs.subList(i,
+                    Math.min(i + MAX_BATCH_VALUES, fileIDs.size()));
+
+            stmt = prepareBatchStatement(SCM_QUERY_BATCH_FILE_PATHS, ids);
+            stmt.setInt(ids.size() + 1, maxCommitID);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                int fileID = rs.getInt(SCM_BATCH_FILE_ID);
+                TreeMap<Integer, String> links = paths.get(fileID);
+
+                if (links == null) {
+                    links = new TreeMap<Integer, String>();
+                    paths.put(fileID, links);
+                }
+
+                links.put(rs.getInt(SCM_BATCH_COMMIT_ID),
+                        rs.getString(SCM_FILE_PATH));
+            }
+
+            stmt.close();
+        }
+
+        return paths;
+    }
+
+    /*
+     * Returns the modules, and their functions, of the given commits
+     * indexed by file and commit
+     */
+    protected HashMap<String, ArrayList<Module>> getCommitsModules(
+            List<Integer> commitIDs) throws SQLException {
+        HashMap<String, ArrayList<Module>> modules;
+        HashMap<Integer, Module> modulesByID;
+        ArrayList<Integer> moduleIDs;
+        PreparedStatement stmt;
+        ResultSet rs;
+
+        modules = new HashMap<String, ArrayList<Module>>();
+        modulesByID = new HashMap<Integer, Module>();
+        moduleIDs = new ArrayList<Integer>();
+
+        stmt = prepareBatchStatement(SCM_QUERY_BATCH_MODULES, commitIDs);
+        rs = executeQuery(stmt);
+
+        while (rs.next()) {
+            int moduleID = rs.getInt(SCM_MODULE_ID);
+            String key = fileKey(rs.getInt(SCM_MODULE_FILE_ID),
+                    rs.getInt(SCM_MODULE_COMMIT_ID));
+            String name = rs.getString(SCM_MODULE_NAME);
+            int startLine = rs.getInt(SCM_SRC_START_LINE);
+            int endLine = rs.getInt(SCM_SRC_END_LINE);
+            Module module = new Module(name, startLine, endLine);
+            ArrayList<Module> fileModules = modules.get(key);
+
+            if (fileModules == null) {
+                fileModules = new ArrayList<Module>();
+                modules.put(key, fileModules);
+            }
+
+            fileModules.add(module);
+            modulesByID.put(moduleID, module);
+            moduleIDs.add(moduleID);
+        }
+
+        stmt.close();
+
+        for (int i = 0; i < moduleIDs.size(); i += MAX_BATCH_VALUES) {
+            List<Integer> ids = moduleIDs.subList(i,
+                    Math.min(i + MAX_BATCH_VALUES, moduleIDs.size()));
+
+            stmt = prepareBatchStatement(SCM_QUERY_BATCH_FUNCTIONS, ids);
+            rs = executeQuery(stmt);
+
+            while (rs.next()) {
+                int moduleID = rs.getInt(SCM_FUNCTION_MODULE_ID);
+                String header = rs.getString(SCM_FUNCTION_HEADER);
+                int startLine = rs.getInt(SCM_SRC_START_LINE);
+                int endLine = rs.getInt(SCM_SRC_END_LINE);
+
+                modulesByID.get(moduleID).addFunction(
+                        new Function(header, startLine, endLine));
+            }
+
+            stmt.close();
+        }
+
+        return modules;
+    }
+
+    private PreparedStatement prepareBatchStatement(String query,
+            List<Integer> ids) throws SQLException {
+        PreparedStatement stmt;
+        int i = 1;
+
+        stmt = prepareStatement(String.format(query, placeholders(ids.size())));
+
+        for (int id : ids) {
+            stmt.setInt(i++, id);
+        }
+
+        return stmt;
+    }
+
+    private static String fileKey(int fileID, int commitID) {
+        return fileID + ":" + commitID;
+    }
+
     private EventSummary createEventSummary(ResultSet rs)
             throws DatabaseExtractionError {
         int eventID;
@@ -498,4 +966,16 @@ public class SCMRetrieval extends Database {
         return summary;
     }
 
+    /* Raw data of a commit retrieved on batch mode */
+    private static class CommitRow {
+        int commitID;
+        int repoID;
+        String message;
+        String revision;
+        Timestamp date;
+        int authorID;
+        boolean hasAuthor;
+        int committerID;
+    }
+
 }
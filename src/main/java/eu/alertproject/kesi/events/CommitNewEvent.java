@@ -23,6 +23,7 @@
 package eu.alertproject.kesi.events;
 
 public class CommitNewEvent extends Event {
+    private static final long serialVersionUID = 1L;
 
     public CommitNewEvent() {
         eventName = EventFactory.EVENT_SCM_NEW;
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.events;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes the SOAP envelope of the events as UTF-8 into a byte buffer
+ * that is reused between events. The static parts of the envelope are
+ * encoded only once and the payload is encoded straight into the
+ * buffer, so no intermediate strings are created.
+ *
+ * Instances are not thread-safe.
+ */
+public final class EnvelopeWriter {
+    private static final String CHARSET = "UTF-8";
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    /* Larger buffers are released after writing the next envelope */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /* Number of chars of the payload encoded on each step */
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final String[] FRAGMENTS = {
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
+                    + "            xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\""
+                    + "            xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">"
+                    + "  <s:Header></s:Header>"
+                    + "  <s:Body>"
+                    + "    <wsnt:Notify>"
+                    + "      <wsnt:NotificationMessage>"
+                    + "        <wsnt:Topic></wsnt:Topic>"
+                    + "        <wsnt:ProducerReference>"
+                    + "          <wsa:Address>http://www.alert-project.eu/kesi</wsa:Address>"
+                    + "        </wsnt:ProducerReference>"
+                    + "        <wsnt:Message>"
+                    + "          <ns1:event xmlns:ns1=\"http://www.alert-project.eu/\""
+                    + "                     xmlns:o=\"http://www.alert-project.eu/ontoevents-mdservice\""
+                    + "                     xmlns:r=\"http://www.alert-project.eu/rawevents-forum\""
+                    + "                     xmlns:r1=\"http://www.alert-project.eu/rawevents-mailinglist\""
+                    + "                     xmlns:r2=\"http://www.alert-project.eu/rawevents-wiki\""
+                    + "                     xmlns:s=\"http://www.alert-project.eu/strevents-kesi\""
+                    + "                     xmlns:s1=\"http://www.alert-project.eu/strevents-keui\""
+                    + "                     xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                    + "                     xsi:schemaLocation=\"http://www.alert-project.eu/alert-root.xsd\">"
+                    + "            <ns1:head>"
+                    + "              <ns1:sender>KESI</ns1:sender>"
+                    + "              <ns1:timestamp>",
+            "</ns1:timestamp>"
+                    + "              <ns1:sequencenumber>",
+            "</ns1:sequencenumber>"
+                    + "            </ns1:head>"
+                    + "            <ns1:payload>"
+                    + "              <ns1:meta>"
+                    + "                <ns1:startTime>10010</ns1:startTime><ns1:endTime>10010</ns1:endTime>"
+                    + "                <ns1:eventName>",
+            "</ns1:eventName>"
+                    + "                <ns1:eventId>",
+            "</ns1:eventId>"
+                    + "                <ns1:eventType>request</ns1:eventType>"
+                    + "              </ns1:meta>"
+                    + "              <ns1:eventData>",
+            "</ns1:eventData>"
+                    + "            </ns1:payload>"
+                    + "          </ns1:event>"
+                    + "        </wsnt:Message>"
+                    + "      </wsnt:NotificationMessage>"
+                    + "    </wsnt:Notify>" + "  </s:Body>" + "</s:Envelope>" };
+
+    private static final byte[][] ENCODED_FRAGMENTS = encodeFragments();
+
+    private static final int FRAGMENTS_LENGTH = fragmentsLength();
+
+    private byte[] buf;
+    private int count;
+
+    public EnvelopeWriter() {
+        buf = new byte[INITIAL_SIZE];
+        count = 0;
+    }
+
+    /**
+     * Writes the envelope of the event, replacing the previous contents
+     * of the buffer.
+     */
+    public void write(Event event, String sequenceNumber) {
+        write(event, sequenceNumber, System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the envelope of the event with the given timestamp, in
+     * milliseconds since the epoch.
+     */
+    public void write(Event event, String sequenceNumber, long timestamp) {
+        reset();
+
+        write(ENCODED_FRAGMENTS[0]);
+        writeLong(timestamp);
+        write(ENCODED_FRAGMENTS[1]);
+        writeString(sequenceNumber);
+        write(ENCODED_FRAGMENTS[2]);
+        writeString(event.getEventName());
+        write(ENCODED_FRAGMENTS[3]);
+        writeString(event.getEventID());
+        write(ENCODED_FRAGMENTS[4]);
+        writeString(event.getContent());
+        write(ENCODED_FRAGMENTS[5]);
+    }
+
+    /**
+     * Returns the internal buffer. Only the first size() bytes are
+     * valid and they are overwritten by the next call to write().
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /*
+     * Returns the envelope of the event as a string, used when no
+     * writer is at hand.
+     */
+    static String toMessage(Event event, String sequenceNumber,
+            long timestamp) {
+        String content = event.getContent();
+        StringBuilder sb;
+
+        sb = new StringBuilder(FRAGMENTS_LENGTH + 64
+                + (content == null ? 4 : content.length()));
+        sb.append(FRAGMENTS[0]).append(timestamp);
+        sb.append(FRAGMENTS[1]).append(sequenceNumber);
+        sb.append(FRAGMENTS[2]).append(event.getEventName());
+        sb.append(FRAGMENTS[3]).append(event.getEventID());
+        sb.append(FRAGMENTS[4]).append(content);
+        sb.append(FRAGMENTS[5]);
+
+        return sb.toString();
+    }
+
+    private void reset() {
+        if (buf.length > MAX_RETAINED_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+        }
+
+        count = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buf.length) {
+            return;
+        }
+
+        byte[] aux = new byte[Math.max(capacity, buf.length * 2)];
+        System.arraycopy(buf, 0, aux, 0, count);
+        buf = aux;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(count + bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeLong(long value) {
+        /* Timestamps are never negative */
+        int start = count;
+
+        ensureCapacity(count + 20);
+
+        do {
+            buf[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte aux = buf[i];
+            buf[i] = buf[j];
+            buf[j] = aux;
+        }
+    }
+
+    /*
+     * Encodes the string as UTF-8. Unpaired surrogates are replaced by
+     * '?', as String.getBytes() does. Null strings are written as
+     * "null", like String.format() did.
+     */
+    private void writeString(String s) {
+        int length;
+        int i;
+
+        if (s == null) {
+            s = "null";
+        }
+
+        length = s.length();
+        i = 0;
+
+        while (i < length) {
+            int end = Math.min(length, i + CHUNK_SIZE);
+
+            /* Up to 3 bytes per char, plus a surrogate pair at the end */
+            ensureCapacity(count + (end - i) * 3 + 4);
+
+            for (; i < end; i++) {
+                char c = s.charAt(i);
+
+                if (c < 0x80) {
+                    buf[count++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xC0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xF0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (c >= Character.MIN_SURROGATE
+                        && c <= Character.MAX_SURROGATE) {
+                    buf[count++] = '?';
+                } else {
+                    buf[count++] = (byte) (0xE0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+    }
+
+    private static byte[][] encodeFragments() {
+        byte[][] encoded = new byte[FRAGMENTS.length][];
+
+        try {
+            for (int i = 0; i < FRAGMENTS.length; i++) {
+                encoded[i] = FRAGMENTS[i].getBytes(CHARSET);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return encoded;
+    }
+
+    private static int fragmentsLength() {
+        int length = 0;
+
+        for (String fragment : FRAGMENTS) {
+            length += fragment.length();
+        }
+
+        return length;
+    }
+
+}
@@ -22,58 +22,25 @@
 
 package eu.alertproject.kesi.events;
 
+import java.io.Serializable;
 import java.util.UUID;
 
-public abstract class Event {
-    private static final String EVENT_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
-            + "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
-            + "            xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\""
-            + "            xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">"
-            + "  <s:Header></s:Header>"
-            + "  <s:Body>"
-            + "    <wsnt:Notify>"
-            + "      <wsnt:NotificationMessage>"
-            + "        <wsnt:Topic></wsnt:Topic>"
-            + "        <wsnt:ProducerReference>"
-            + "          <wsa:Address>http://www.alert-project.eu/kesi</wsa:Address>"
-            + "        </wsnt:ProducerReference>"
-            + "        <wsnt:Message>"
-            + "          <ns1:event xmlns:ns1=\"http://www.alert-project.eu/\""
-            + "                     xmlns:o=\"http://www.alert-project.eu/ontoevents-mdservice\""
-            + "                     xmlns:r=\"http://www.alert-project.eu/rawevents-forum\""
-            + "                     xmlns:r1=\"http://www.alert-project.eu/rawevents-mailinglist\""
-            + "                     xmlns:r2=\"http://www.alert-project.eu/rawevents-wiki\""
-            + "                     xmlns:s=\"http://www.alert-project.eu/strevents-kesi\""
-            + "                     xmlns:s1=\"http://www.alert-project.eu/strevents-keui\""
-            + "                     xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
-            + "                     xsi:schemaLocation=\"http://www.alert-project.eu/alert-root.xsd\">"
-            + "            <ns1:head>"
-            + "              <ns1:sender>KESI</ns1:sender>"
-            + "              <ns1:timestamp>%s</ns1:timestamp>"
-            + "              <ns1:sequencenumber>%s</ns1:sequencenumber>"
-            + "            </ns1:head>"
-            + "            <ns1:payload>"
-            + "              <ns1:meta>"
-            + "                <ns1:startTime>10010</ns1:startTime><ns1:endTime>10010</ns1:endTime>"
-            + "                <ns1:eventName>%s</ns1:eventName>"
-            + "                <ns1:eventId>%s</ns1:eventId>"
-            + "                <ns1:eventType>request</ns1:eventType>"
-            + "              </ns1:meta>"
-            + "              <ns1:eventData>%s</ns1:eventData>"
-            + "            </ns1:payload>"
-            + "          </ns1:event>"
-            + "        </wsnt:Message>"
-            + "      </wsnt:NotificationMessage>"
-            + "    </wsnt:Notify>" + "  </s:Body>" + "</s:Envelope>";
+public abstract class Event implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /* Value of eventKey for events without a key */
+    public static final int NO_KEY = -1;
 
     protected String eventID;
     protected String eventName;
     protected String eventDate;
     protected String content;
     protected String sourceURI;
+    protected int eventKey;
 
     public Event() {
         this.eventID = generateEventID();
+        this.eventKey = NO_KEY;
     }
 
     public String getEventID() {
@@ -108,9 +75,32 @@ public abstract class Event {
         this.sourceURI = sourceURI;
     }
 
+    /**
+     * Returns the id of the event on the source database, used to
+     * know where to start the next time events are generated.
+     */
+    public int getEventKey() {
+        return eventKey;
+    }
+
+    public void setEventKey(int eventKey) {
+        this.eventKey = eventKey;
+    }
+
+    /**
+     * Returns the SOAP envelope of the event. Use an EnvelopeWriter
+     * to get it encoded as UTF-8 without intermediate strings.
+     */
     public String toMessage(String sequenceNumber) {
-        return String.format(EVENT_TEMPLATE, System.currentTimeMillis(),
-                sequenceNumber, this.eventName, this.eventID, this.content);
+        return toMessage(sequenceNumber, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the SOAP envelope of the event with the given timestamp,
+     * in milliseconds since the epoch.
+     */
+    public String toMessage(String sequenceNumber, long timestamp) {
+        return EnvelopeWriter.toMessage(this, sequenceNumber, timestamp);
     }
 
     public static String generateEventID() {
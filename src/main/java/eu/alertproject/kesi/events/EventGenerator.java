@@ -25,20 +25,27 @@ import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 import org.apache.log4j.Logger;
 
+import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.database.Database;
 import eu.alertproject.kesi.database.DatabaseConnectionError;
 import eu.alertproject.kesi.database.DatabaseExtractionError;
 import eu.alertproject.kesi.database.DatabaseFactory;
 import eu.alertproject.kesi.database.DatabaseNotSupportedError;
 import eu.alertproject.kesi.database.DriverNotSupportedError;
+import eu.alertproject.kesi.database.EntityCaches;
 import eu.alertproject.kesi.database.EventSet;
 import eu.alertproject.kesi.database.EventSetFactory;
 import eu.alertproject.kesi.jobs.EventJob;
 import eu.alertproject.kesi.jobs.Queue;
+import eu.alertproject.kesi.metrics.Metrics;
+import eu.alertproject.kesi.model.EntityMarshaller;
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
 import eu.alertproject.kesi.publisher.EventPublisher;
 
@@ -49,17 +56,46 @@ public enum EventGenerator {
 
     private boolean initialized = false;
     private Queue<EventJob> queue;
-    private EventGeneratorThread generator;
+    private ArrayList<EventGeneratorThread> generators;
+
+    /*
+     * Jobs waiting for other jobs of the same source, indexed by
+     * source URI. A source is on this map while one of its jobs is
+     * queued or running. Only one job for each source is on the queue
+     * at the same time, so events of a source are generated in order.
+     */
+    private final HashMap<String, LinkedList<EventJob>> pending = new HashMap<String, LinkedList<EventJob>>();
 
     public void start() {
+        int workers;
+
         if (initialized) {
             logger.error("Event generator is already running");
             return;
         }
 
+        EntityMarshaller.INSTANCE.setFormattedOutput(!PreferencesManager.INSTANCE
+                .getPublisherCompactXML());
+
+        workers = Math.max(1, PreferencesManager.INSTANCE.getEventsWorkers());
+
+        /*
+         * Each source has at most one job on the queue, so it is
+         * bounded. Workers put jobs on it, so it must never block.
+         */
         queue = new Queue<EventJob>();
-        generator = new EventGeneratorThread(queue);
-        generator.start();
+        generators = new ArrayList<EventGeneratorThread>();
+
+        Metrics.INSTANCE.registerQueue("events", queue);
+
+        for (int i = 0; i < workers; i++) {
+            EventGeneratorThread generator = new EventGeneratorThread(queue);
+            generator.setName("EventGenerator-" + i);
+            generator.start();
+            generators.add(generator);
+        }
+
+        logger.debug(workers + " event generators started");
 
         initialized = true;
     }
@@ -71,7 +107,9 @@ public enum EventGenerator {
         }
 
         try {
-            generator.join();
+            for (EventGeneratorThread generator : generators) {
+                generator.join();
+            }
         } catch (InterruptedException e) {
             logger.error("Unexpected error stopping EventGenerator thread", e);
             throw new RuntimeException(e);
@@ -79,13 +117,61 @@ public enum EventGenerator {
     }
 
     public void generate(StructuredKnowledgeSource source, Timestamp fromDate) {
+        generate(source, fromDate, StructuredKnowledgeSource.NO_ID);
+    }
+
+    /**
+     * Generates the events of the source after the given date and, when
+     * fromID is not NO_ID, after the event with that id.
+     */
+    public void generate(StructuredKnowledgeSource source,
+            Timestamp fromDate, int fromID) {
         if (!initialized) {
             logger.error("Extractor generator is not running");
             return;
         }
 
-        EventJob job = new EventJob(source, fromDate);
+        EventJob job = new EventJob(source, fromDate, fromID);
+        String key = getSourceKey(job);
+
+        synchronized (pending) {
+            LinkedList<EventJob> jobs = pending.get(key);
+
+            if (jobs != null) {
+                /* Another job of this source is running */
+                jobs.add(job);
+                return;
+            }
+
+            pending.put(key, new LinkedList<EventJob>());
+        }
+
+        schedule(job);
+    }
+
+    /*
+     * Schedules the next job of the source of the given job once it
+     * has finished.
+     */
+    private void release(EventJob job) {
+        String key = getSourceKey(job);
+        EventJob next;
+
+        synchronized (pending) {
+            LinkedList<EventJob> jobs = pending.get(key);
+
+            if (jobs == null || jobs.isEmpty()) {
+                pending.remove(key);
+                return;
+            }
+
+            next = jobs.removeFirst();
+        }
+
+        schedule(next);
+    }
 
+    private void schedule(EventJob job) {
         try {
             queue.put(job);
         } catch (InterruptedException e) {
@@ -93,6 +179,10 @@ public enum EventGenerator {
         }
     }
 
+    private static String getSourceKey(EventJob job) {
+        return job.getSource().getURI().toASCIIString();
+    }
+
     private class EventGeneratorThread extends Thread {
         private final DatabaseFactory factory;
         private final Queue<EventJob> queue;
@@ -114,56 +204,81 @@ public enum EventGenerator {
                     continue;
                 }
 
-                generateAndPublish(job);
+                try {
+                    generateAndPublish(job);
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected error generating events", e);
+                    Metrics.INSTANCE.error(getSourceKey(job));
+                } finally {
+                    release(job);
+                }
             }
         }
 
         private void generateAndPublish(EventJob job) {
+            Database connection;
             EventSet iterator;
             Event event;
             int numEvents = 0;
 
             try {
-                iterator = generateEvents(job);
+                connection = getDatabaseConnection(job.getSource());
             } catch (EventGeneratorError e) {
-                String msg = "Error iterator for events. URL: "
-                        + job.getSource().getURI().toASCIIString() + "Cause: "
-                        + e.getMessage() + ". Ignoring events.";
+                String msg = "Error connecting to database. URL: "
+                        + job.getSource().getURI().toASCIIString()
+                        + ". Ignoring events.";
                 logger.error(msg, e);
+                Metrics.INSTANCE.error(getSourceKey(job));
                 return;
             }
 
-            while (iterator.hasNext()) {
-                event = iterator.next();
-
+            try {
                 try {
-                    String eventName = event.getEventName();
-                    /* Publish event */
-                    EventPublisher.INSTANCE.publish(event);
-                    logger.info(eventName + " sent");
-                    logger.debug(event.getContent());
-                    ++numEvents;
-                } catch (Exception e) {
-                    logger.error("Error publishing message", e);
+                    iterator = generateEvents(job, connection);
+                } catch (EventGeneratorError e) {
+                    String msg = "Error iterator for events. URL: "
+                            + job.getSource().getURI().toASCIIString()
+                            + "Cause: " + e.getMessage()
+                            + ". Ignoring events.";
+                    logger.error(msg, e);
+                    Metrics.INSTANCE.error(getSourceKey(job));
+                    return;
+                }
+
+                while (iterator.hasNext()) {
+                    event = iterator.next();
+
+                    try {
+                        String eventName = event.getEventName();
+                        /* Publish event */
+                        EventPublisher.INSTANCE.publish(event);
+                        logger.info(eventName + " sent");
+                        logger.debug(event.getContent());
+                        ++numEvents;
+                    } catch (Exception e) {
+                        logger.error("Error publishing message", e);
+                        Metrics.INSTANCE.error(getSourceKey(job));
+                    }
                 }
+            } finally {
+                connection.close();
             }
 
             logger.info(numEvents + " messages published");
+            logger.debug(EntityCaches.INSTANCE.toString());
         }
 
-        private EventSet generateEvents(EventJob job)
+        private EventSet generateEvents(EventJob job, Database connection)
                 throws EventGeneratorError {
             StructuredKnowledgeSource source;
-            Database connection;
             EventSetFactory factory;
 
             source = job.getSource();
-            connection = getDatabaseConnection(source);
             factory = new EventSetFactory(connection);
 
             try {
                 return factory.getEventSet(source.getURI().toASCIIString(),
-                        job.getFromDate());
+                        job.getFromDate(), job.getFromID());
             } catch (DatabaseExtractionError e) {
                 throw new EventGeneratorError(e.getMessage());
             } catch (DatabaseNotSupportedError e) {
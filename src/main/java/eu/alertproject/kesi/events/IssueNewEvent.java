@@ -23,6 +23,7 @@
 package eu.alertproject.kesi.events;
 
 public class IssueNewEvent extends Event {
+    private static final long serialVersionUID = 1L;
 
     public IssueNewEvent() {
         eventName = EventFactory.EVENT_ITS_NEW;
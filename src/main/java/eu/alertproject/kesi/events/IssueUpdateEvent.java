@@ -23,6 +23,7 @@
 package eu.alertproject.kesi.events;
 
 public class IssueUpdateEvent extends Event {
+    private static final long serialVersionUID = 1L;
 
     public IssueUpdateEvent() {
         eventName = EventFactory.EVENT_ITS_UPDATE;
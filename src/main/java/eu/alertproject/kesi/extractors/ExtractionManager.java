@@ -21,13 +21,47 @@
 
 package eu.alertproject.kesi.extractors;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 
+import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.jobs.ExtractionJob;
 import eu.alertproject.kesi.jobs.Queue;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.model.Repository;
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
 
+/**
+ * Schedules the extraction of sources on a set of SCM and ITS
+ * extractors running in parallel.
+ *
+ * A source is extracted by only one extractor at the same time.
+ * Requests for a source that is waiting to be extracted are ignored,
+ * while requests for a source that is being extracted are merged in a
+ * new run that starts when the current one finishes. The number of
+ * extractions running against the same host is also limited, so
+ * servers are not flooded with requests.
+ *
+ * Requests coming from notifications (see request()) are debounced:
+ * the first one for an idle source is dispatched right away and starts
+ * a window of extractors/debounce ms. The ones received during the
+ * window are merged in a single extraction scheduled when it closes,
+ * so a burst of mails about a source produces at most two extractions.
+ * Merged requests are counted as suppressed runs on the metrics.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
 public enum ExtractionManager {
     INSTANCE;
 
@@ -40,23 +74,77 @@ public enum ExtractionManager {
     private Queue<ExtractionJob> itsJobs;
 
     /* Extractors */
-    private ITSExtractor its;
-    private SCMExtractor scm;
+    private ArrayList<Extractor> extractors;
+
+    /* Maximum number of extractions per host; 0 means no limit */
+    private int hostLimit;
+
+    /* Debounce window for requests, in ms; 0 disables it */
+    private long debounce;
+    private ScheduledExecutorService debouncer;
+
+    /* State of the sources, indexed by URI */
+    private final HashSet<String> waiting = new HashSet<String>();
+    private final HashSet<String> running = new HashSet<String>();
+    private final HashMap<String, StructuredKnowledgeSource> rerun = new HashMap<String, StructuredKnowledgeSource>();
+    private final HashSet<String> debounced = new HashSet<String>();
+    private final HashMap<String, StructuredKnowledgeSource> deferred = new HashMap<String, StructuredKnowledgeSource>();
+
+    /* Jobs on the queues or running and jobs held back, per host */
+    private final HashMap<String, Integer> hostJobs = new HashMap<String, Integer>();
+    private final HashMap<String, LinkedList<ExtractionJob>> hostPending = new HashMap<String, LinkedList<ExtractionJob>>();
 
     public void start() {
+        int scmWorkers;
+        int itsWorkers;
+
         if (initialized) {
             logger.error("Extraction manager is already running");
             return;
         }
 
+        scmWorkers = Math.max(1,
+                PreferencesManager.INSTANCE.getExtractorsSCMWorkers());
+        itsWorkers = Math.max(1,
+                PreferencesManager.INSTANCE.getExtractorsITSWorkers());
+        hostLimit = Math.max(0,
+                PreferencesManager.INSTANCE.getExtractorsHostLimit());
+        debounce = Math.max(0,
+                PreferencesManager.INSTANCE.getExtractorsDebounce());
+        debouncer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ExtractionDebouncer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        /* Each source has at most one job waiting, so these are bounded */
         itsJobs = new Queue<ExtractionJob>();
         scmJobs = new Queue<ExtractionJob>();
+        extractors = new ArrayList<Extractor>();
 
-        its = new ITSExtractor(itsJobs);
-        its.start();
+        Metrics.INSTANCE.registerQueue("its", itsJobs);
+        Metrics.INSTANCE.registerQueue("scm", scmJobs);
 
-        scm = new SCMExtractor(scmJobs);
-        scm.start();
+        for (int i = 0; i < itsWorkers; i++) {
+            ITSExtractor its = new ITSExtractor(itsJobs);
+            its.setName("ITSExtractor-" + i);
+            its.start();
+            extractors.add(its);
+        }
+
+        for (int i = 0; i < scmWorkers; i++) {
+            SCMExtractor scm = new SCMExtractor(scmJobs);
+            scm.setName("SCMExtractor-" + i);
+            scm.start();
+            extractors.add(scm);
+        }
+
+        logger.debug(itsWorkers + " ITS and " + scmWorkers
+                + " SCM extractors started. Host limit: " + hostLimit);
 
         initialized = true;
     }
@@ -68,25 +156,207 @@ public enum ExtractionManager {
         }
 
         try {
-            its.join();
-            scm.join();
+            for (Extractor extractor : extractors) {
+                extractor.join();
+            }
         } catch (InterruptedException e) {
             logger.error("Unexpected interruption", e);
             throw new RuntimeException(e);
         }
 
+        debouncer.shutdownNow();
+
         initialized = false;
     }
 
     public void extract(StructuredKnowledgeSource source) {
-        ExtractionJob job;
+        String key;
 
         if (!initialized) {
             logger.error("Extraction manager is not running");
             return;
         }
 
-        job = new ExtractionJob(source);
+        key = getSourceKey(source);
+
+        synchronized (this) {
+            if (waiting.contains(key)) {
+                logger.debug("Source " + key + " already scheduled. Skipping.");
+                Metrics.INSTANCE.suppressed(key);
+                return;
+            }
+
+            if (running.contains(key)) {
+                logger.debug("Source " + key
+                        + " is being extracted. Extraction delayed.");
+
+                if (rerun.put(key, source) != null) {
+                    Metrics.INSTANCE.suppressed(key);
+                }
+                return;
+            }
+
+            waiting.add(key);
+            dispatch(new ExtractionJob(source));
+        }
+    }
+
+    /**
+     * Requests the extraction of a source that has been notified as
+     * updated. When the source is idle, it is extracted right away.
+     * Requests received while another one for the same source is
+     * waiting on the queues are merged with it; the ones received
+     * during the debounce window of the last dispatched request are
+     * merged in one extraction scheduled when the window closes.
+     * Returns false when the request is dropped because the manager is
+     * not running.
+     */
+    public boolean request(final StructuredKnowledgeSource source) {
+        final String key;
+
+        if (!initialized) {
+            logger.error("Extraction manager is not running");
+            return false;
+        }
+
+        key = getSourceKey(source);
+
+        synchronized (this) {
+            if (waiting.contains(key) || rerun.containsKey(key)) {
+                logger.debug("Request for source " + key + " merged.");
+                Metrics.INSTANCE.suppressed(key);
+                return true;
+            }
+
+            if (debounced.contains(key)) {
+                logger.debug("Request for source " + key + " deferred.");
+
+                if (deferred.put(key, source) != null) {
+                    Metrics.INSTANCE.suppressed(key);
+                }
+                return true;
+            }
+
+            extract(source);
+
+            if (debounce == 0) {
+                return true;
+            }
+
+            debounced.add(key);
+        }
+
+        debouncer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ExtractionManager.this) {
+                    StructuredKnowledgeSource next;
+
+                    debounced.remove(key);
+                    next = deferred.remove(key);
+
+                    if (next != null) {
+                        extract(next);
+                    }
+                }
+            }
+        }, debounce, TimeUnit.MILLISECONDS);
+
+        return true;
+    }
+
+    /**
+     * Returns whether the source identified by the URI is waiting to be
+     * extracted or being extracted.
+     */
+    public synchronized boolean isPending(String uri) {
+        return deferred.containsKey(uri) || waiting.contains(uri)
+                || running.contains(uri) || rerun.containsKey(uri);
+    }
+
+    /*
+     * Called by the extractors when they take a job from the queue.
+     */
+    synchronized void started(ExtractionJob job) {
+        String key = getSourceKey(job.getSource());
+
+        waiting.remove(key);
+        running.add(key);
+    }
+
+    /*
+     * Called by the extractors when a job has finished, whatever the
+     * result was. Schedules the jobs that were waiting for this source
+     * or for its host.
+     */
+    synchronized void finished(ExtractionJob job) {
+        String key = getSourceKey(job.getSource());
+        String host = getHostKey(job.getSource());
+        StructuredKnowledgeSource source;
+        LinkedList<ExtractionJob> pending;
+
+        running.remove(key);
+
+        if (hostLimit > 0) {
+            int n = hostJobs.get(host) - 1;
+
+            if (n == 0) {
+                hostJobs.remove(host);
+            } else {
+                hostJobs.put(host, n);
+            }
+
+            pending = hostPending.get(host);
+
+            if (pending != null) {
+                dispatch(pending.removeFirst());
+
+                if (pending.isEmpty()) {
+                    hostPending.remove(host);
+                }
+            }
+        }
+
+        source = rerun.remove(key);
+
+        if (source != null) {
+            waiting.add(key);
+            dispatch(new ExtractionJob(source));
+        }
+    }
+
+    /*
+     * Puts the job on its queue or holds it back when too many
+     * extractions of its host are running. Must be called holding the
+     * lock of this object.
+     */
+    private void dispatch(ExtractionJob job) {
+        StructuredKnowledgeSource source = job.getSource();
+
+        if (hostLimit > 0) {
+            String host = getHostKey(source);
+            Integer n = hostJobs.get(host);
+
+            if (n == null) {
+                n = 0;
+            }
+
+            if (n >= hostLimit) {
+                LinkedList<ExtractionJob> pending = hostPending.get(host);
+
+                if (pending == null) {
+                    pending = new LinkedList<ExtractionJob>();
+                    hostPending.put(host, pending);
+                }
+
+                pending.add(job);
+                logger.debug("Host " + host + " is busy. Job for "
+                        + getSourceKey(source) + " delayed.");
+                return;
+            }
+
+            hostJobs.put(host, n + 1);
+        }
 
         try {
             if (source instanceof Repository) {
@@ -95,9 +365,18 @@ public enum ExtractionManager {
                 itsJobs.put(job);
             }
         } catch (InterruptedException e) {
-            logger.error("Error scheduling sourc esextraction", e);
+            logger.error("Error scheduling sources extraction", e);
             throw new RuntimeException(e);
         }
     }
 
+    private static String getSourceKey(StructuredKnowledgeSource source) {
+        return source.getURI().toASCIIString();
+    }
+
+    private static String getHostKey(StructuredKnowledgeSource source) {
+        String host = source.getURI().getHost();
+        return host == null ? "" : host.toLowerCase();
+    }
+
 }
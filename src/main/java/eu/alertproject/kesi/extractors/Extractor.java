@@ -30,10 +30,12 @@ import java.util.Date;
 
 import org.apache.log4j.Logger;
 
+import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.events.EventGenerator;
 import eu.alertproject.kesi.jobs.ExtractionJob;
 import eu.alertproject.kesi.jobs.Queue;
 import eu.alertproject.kesi.jobs.CommandRunner;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
 import eu.alertproject.kesi.sources.SourcesManager;
 import eu.alertproject.kesi.sources.SourcesManagerError;
@@ -56,21 +58,29 @@ public abstract class Extractor extends Thread {
 
             while (true) {
                 StructuredKnowledgeSource source;
+                StructuredKnowledgeSource.Watermark watermark;
                 Timestamp lastSent;
 
                 job = getNextJob();
+                ExtractionManager.INSTANCE.started(job);
 
                 try {
                     runJob(job);
+
+                    source = job.getSource();
+                    watermark = source.getWatermark();
+                    lastSent = dateToTimestamp(watermark.getDate());
+
+                    generateEvents(source, lastSent, watermark.getLastID());
                 } catch (ExtractionError e) {
                     logger.error("Error running job. Skipping.");
-                    continue;
+                    Metrics.INSTANCE.error(getSourceKey(job));
+                } catch (RuntimeException e) {
+                    logger.error("Unexpected error running job. Skipping.", e);
+                    Metrics.INSTANCE.error(getSourceKey(job));
+                } finally {
+                    ExtractionManager.INSTANCE.finished(job);
                 }
-
-                source = job.getSource();
-                lastSent = dateToTimestamp(source.getDate());
-
-                generateEvents(source, lastSent);
             }
         } catch (InterruptedException e) {
             logger.error("", e);
@@ -94,15 +104,20 @@ public abstract class Extractor extends Thread {
         CommandRunner tr;
         String url;
         StructuredKnowledgeSource source;
+        long start;
 
         source = job.getSource();
-        url = source.getURI().toASCIIString();
+        url = getSourceKey(job);
+
+        start = System.nanoTime();
 
         try {
             SourcesManager.INSTANCE.downloadSource(url);
         } catch (SourcesManagerError e) {
             logger.error("Downloading source", e);
             throw new ExtractionError(e.getMessage());
+        } finally {
+            Metrics.INSTANCE.time(Metrics.STAGE_DOWNLOAD, start);
         }
 
         msg = "job-" + job.getID() + "(" + url + ") - ";
@@ -119,8 +134,11 @@ public abstract class Extractor extends Thread {
         // logger.debug(msg + "Command: " + cmd.toString());
 
         logger.info(msg + "RUNNING");
-        tr = new CommandRunner();
+        tr = new CommandRunner(PreferencesManager.INSTANCE
+                .getExtractorsTimeout());
+        start = System.nanoTime();
         result = tr.run(extractor, cmd, null);
+        Metrics.INSTANCE.time(extractor, start);
 
         if (result == 0) {
             logger.info(msg + " FINISHED. Result: " + result);
@@ -131,9 +149,13 @@ public abstract class Extractor extends Thread {
         }
     }
 
+    private static String getSourceKey(ExtractionJob job) {
+        return job.getSource().getURI().toASCIIString();
+    }
+
     private void generateEvents(StructuredKnowledgeSource source,
-            Timestamp fromDate) {
-        EventGenerator.INSTANCE.generate(source, fromDate);
+            Timestamp fromDate, int fromID) {
+        EventGenerator.INSTANCE.generate(source, fromDate, fromID);
     }
 
     protected Timestamp stringToTimestamp(String d) {
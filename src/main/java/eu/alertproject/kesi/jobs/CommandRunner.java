@@ -22,58 +22,117 @@
 package eu.alertproject.kesi.jobs;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Runs external tools. The output of the tools is logged line by line
+ * while they run; only the last lines are kept in memory, to be logged
+ * again when the tool fails. Tools running longer than the timeout are
+ * killed, together with the processes they started.
+ */
 public class CommandRunner {
+    public static final long NO_TIMEOUT = 0;
+
+    /* Lines of output kept to report errors */
+    private static final int TAIL_LINES = 100;
+
+    /* Longer lines are cut when they are added to the tail */
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    /* Time to wait for the output once the process has finished */
+    private static final long DRAIN_TIMEOUT = 5000;
 
     static Logger logger = Logger.getLogger(CommandRunner.class);
 
-    private class ThreadStreamReader extends Thread {
-        InputStream is;
-        OutputStream os;
-        String tag;
+    /* Threads reading the output of the tools, shared by all runners */
+    private static final ExecutorService readers = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CommandRunner-reader-"
+                            + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final long timeout;
+    private final LinkedList<String> tail;
 
-        public ThreadStreamReader(InputStream input, OutputStream output,
-                String tag) {
+    public CommandRunner() {
+        this(NO_TIMEOUT);
+    }
+
+    /**
+     * Creates a runner that kills the tools running for more than
+     * timeout ms. NO_TIMEOUT disables the limit.
+     */
+    public CommandRunner(long timeout) {
+        this.timeout = timeout;
+        this.tail = new LinkedList<String>();
+    }
+
+    private class StreamReader implements Runnable {
+        private final InputStream is;
+        private final String tag;
+        private final boolean error;
+
+        public StreamReader(InputStream input, String tag, boolean error) {
             this.is = input;
-            this.os = output;
             this.tag = tag;
+            this.error = error;
         }
 
         @Override
         public void run() {
-            PrintWriter pw = new PrintWriter(os);
-
             try {
                 BufferedReader br = new BufferedReader(
                         new InputStreamReader(is));
                 String line = null;
 
-                while ((line = br.readLine()) != null) {
-                    pw.println("[" + tag + "] " + line);
-                }
+                try {
+                    while ((line = br.readLine()) != null) {
+                        line = "[" + tag + "] " + line;
 
-                pw.flush();
-                pw.close();
+                        if (error) {
+                            logger.warn(line);
+                        } else {
+                            logger.info(line);
+                        }
 
+                        addToTail(line);
+                    }
+                } finally {
+                    br.close();
+                }
             } catch (IOException e) {
-                e.printStackTrace(pw);
+                logger.error("Error reading output of " + tag, e);
             }
         }
     }
 
     public int run(String tool, String[] cmd, String dirname) {
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
         String cmdline = "Running " + tool + ":";
+        Process process = null;
+        ArrayList<Future<?>> output = new ArrayList<Future<?>>();
 
         for (String arg : cmd) {
             cmdline += " " + arg;
@@ -81,9 +140,12 @@ public class CommandRunner {
 
         logger.info(cmdline);
 
+        synchronized (tail) {
+            tail.clear();
+        }
+
         try {
             int code;
-            Process process;
 
             if (dirname != null) {
                 File dir = new File(dirname);
@@ -92,27 +154,230 @@ public class CommandRunner {
                 process = Runtime.getRuntime().exec(cmd);
             }
 
-            ThreadStreamReader stdoutReader = new ThreadStreamReader(
-                    process.getInputStream(), stdout, tool + " - MSG");
-            ThreadStreamReader stderrReader = new ThreadStreamReader(
-                    process.getErrorStream(), stderr, tool + " - ERROR");
+            process.getOutputStream().close();
 
-            stdoutReader.start();
-            stderrReader.start();
+            output.add(readers.submit(new StreamReader(process
+                    .getInputStream(), tool + " - MSG", false)));
+            output.add(readers.submit(new StreamReader(process
+                    .getErrorStream(), tool + " - ERROR", true)));
 
-            code = process.waitFor();
-            stdoutReader.join();
-            stderrReader.join();
+            if (!waitFor(process)) {
+                logger.error(tool + " timed out after " + timeout
+                        + " ms. Killing it.");
+                destroy(process);
+                drain(tool, process, output);
+                logTail(tool);
+                return -1;
+            }
 
-            logger.info(stdout.toString());
-            logger.error(stderr.toString());
+            code = process.exitValue();
+            drain(tool, process, output);
+
+            if (code != 0) {
+                logTail(tool);
+            }
 
             return code;
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Error running " + tool, e);
             return -1;
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            logger.error("Interrupted while running " + tool, e);
+            destroy(process);
+            closeOutput(process);
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /*
+     * Waits for the process to finish. Returns false when the timeout
+     * expires before.
+     */
+    private boolean waitFor(Process process) throws InterruptedException {
+        long deadline;
+
+        if (timeout <= NO_TIMEOUT) {
+            process.waitFor();
+            return true;
+        }
+
+        deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            try {
+                process.exitValue();
+                return true;
+            } catch (IllegalThreadStateException e) {
+                /* Still running */
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            Thread.sleep(Math.min(remaining, 1000));
+        }
+    }
+
+    /*
+     * Waits until the output of the process has been read. Processes
+     * started by the tool can keep its output open, so the wait is
+     * limited. Interrupting a reader does not unblock it, so the
+     * output is closed once the process is gone.
+     */
+    private void drain(String tool, Process process,
+            ArrayList<Future<?>> output) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+        try {
+            for (Future<?> reader : output) {
+                try {
+                    reader.get(Math.max(1,
+                            deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    logger.warn("Output of " + tool
+                            + " still open. Ignoring it.");
+                    reader.cancel(true);
+                } catch (ExecutionException e) {
+                    logger.error("Error reading output of " + tool,
+                            e.getCause());
+                }
+            }
+        } finally {
+            closeOutput(process);
+        }
+    }
+
+    private static void closeOutput(Process process) {
+        if (process == null) {
+            return;
+        }
+
+        try {
+            process.getInputStream().close();
+        } catch (IOException e) {
+            logger.debug("Error closing output of process", e);
+        }
+
+        try {
+            process.getErrorStream().close();
+        } catch (IOException e) {
+            logger.debug("Error closing error output of process", e);
+        }
+    }
+
+    private void addToTail(String line) {
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = line.substring(0, MAX_LINE_LENGTH) + "...";
+        }
+
+        synchronized (tail) {
+            tail.addLast(line);
+
+            if (tail.size() > TAIL_LINES) {
+                tail.removeFirst();
+            }
+        }
+    }
+
+    private void logTail(String tool) {
+        StringBuilder sb = new StringBuilder();
+
+        synchronized (tail) {
+            sb.append("Last ").append(tail.size()).append(" lines of ")
+                    .append(tool).append(" output:");
+
+            for (String line : tail) {
+                sb.append("\n").append(line);
+            }
+        }
+
+        logger.error(sb.toString());
+    }
+
+    /*
+     * Kills the process and its descendants. Process.destroy only
+     * kills the process itself, so the tree is killed first when the
+     * pid of the process is available.
+     */
+    private static void destroy(Process process) {
+        int pid;
+
+        if (process == null) {
+            return;
+        }
+
+        pid = getPid(process);
+
+        if (pid > 0) {
+            killTree(pid);
+        }
+
+        process.destroy();
+    }
+
+    private static void killTree(int pid) {
+        for (int child : getChildren(pid)) {
+            killTree(child);
+        }
+
+        try {
+            Runtime.getRuntime()
+                    .exec(new String[] { "kill", "-KILL", Integer.toString(pid) })
+                    .waitFor();
+        } catch (IOException e) {
+            logger.error("Error killing process " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ArrayList<Integer> getChildren(int pid) {
+        ArrayList<Integer> children = new ArrayList<Integer>();
+
+        try {
+            Process pgrep = Runtime.getRuntime().exec(
+                    new String[] { "pgrep", "-P", Integer.toString(pid) });
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    pgrep.getInputStream()));
+            String line;
+
+            try {
+                while ((line = br.readLine()) != null) {
+                    children.add(Integer.parseInt(line.trim()));
+                }
+            } finally {
+                br.close();
+            }
+
+            pgrep.waitFor();
+        } catch (IOException e) {
+            logger.error("Error listing children of process " + pid, e);
+        } catch (NumberFormatException e) {
+            logger.error("Error listing children of process " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return children;
+    }
+
+    /*
+     * Returns the pid of the process on Unix systems or -1 when it is
+     * not available.
+     */
+    private static int getPid(Process process) {
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            logger.warn("Unable to get the pid of the process. "
+                    + "Processes it started will not be killed.", e);
             return -1;
         }
     }
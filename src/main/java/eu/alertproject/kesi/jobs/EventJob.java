@@ -29,11 +29,18 @@ public class EventJob implements Job {
     private static int id = 0;
     private final StructuredKnowledgeSource source;
     private final Timestamp fromDate;
+    private final int fromID;
 
     public EventJob(StructuredKnowledgeSource source, Timestamp fromDate) {
+        this(source, fromDate, StructuredKnowledgeSource.NO_ID);
+    }
+
+    public EventJob(StructuredKnowledgeSource source, Timestamp fromDate,
+            int fromID) {
         ++id;
         this.source = source;
         this.fromDate = fromDate;
+        this.fromID = fromID;
     }
 
     @Override
@@ -49,4 +56,8 @@ public class EventJob implements Job {
         return fromDate;
     }
 
+    public int getFromID() {
+        return fromID;
+    }
+
 }
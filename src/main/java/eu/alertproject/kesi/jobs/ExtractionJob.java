@@ -21,14 +21,17 @@
 
 package eu.alertproject.kesi.jobs;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
 
 public class ExtractionJob implements Job {
-    private static int id;
+    private static final AtomicInteger counter = new AtomicInteger();
+    private final int id;
     private final StructuredKnowledgeSource source;
 
     public ExtractionJob(StructuredKnowledgeSource source) {
-        ++id;
+        this.id = counter.incrementAndGet();
         this.source = source;
     }
 
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.jobs;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the jobs of a queue, stored on memory-mapped
+ * segment files. Each job is recorded when it is put on the queue and
+ * acknowledged once it has been processed, so the jobs that were not
+ * acknowledged can be recovered after a restart.
+ *
+ * Records are written on the current segment; when it is full, a new
+ * one is created. Oldest segments are deleted as soon as all their
+ * jobs have been acknowledged. Their mappings are released by the
+ * garbage collector, so the disk space of deleted segments may be
+ * freed some time later. Records are only flushed to disk when
+ * sync is enabled; otherwise they survive a crash of KESI but not of
+ * the operating system.
+ */
+public class Journal<J> {
+    /* Record types. Unused space of the segments is filled with zeros */
+    private static final byte END = 0;
+    private static final byte ENQUEUE = 1;
+    private static final byte ACK = 2;
+
+    /* Type and sequence number */
+    private static final int ACK_SIZE = 1 + 8;
+
+    /* Type, sequence number and length of the job */
+    private static final int ENQUEUE_HEADER_SIZE = 1 + 8 + 4;
+
+    private static final String SUFFIX = ".journal";
+
+    private static Logger logger = Logger.getLogger(Journal.class);
+
+    private final File dir;
+    private final String name;
+    private final int segmentSize;
+    private final boolean sync;
+
+    /* Segments by number and segment of each unacknowledged job */
+    private final TreeMap<Long, Segment> segments;
+    private final HashMap<Long, Segment> owners;
+
+    /*
+     * Files of deleted segments that could not be removed, as some
+     * systems do not remove files while they are mapped
+     */
+    private final LinkedList<File> undeleted;
+
+    private Segment current;
+    private long nextSegment;
+    private long nextSeq;
+
+    public Journal(File dir, String name, int segmentSize, boolean sync)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Error creating journal directory "
+                    + dir.getPath());
+        }
+
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.sync = sync;
+        this.segments = new TreeMap<Long, Segment>();
+        this.owners = new HashMap<Long, Segment>();
+        this.undeleted = new LinkedList<File>();
+        this.current = null;
+        this.nextSegment = 0;
+        this.nextSeq = 0;
+    }
+
+    /**
+     * Reads the segments left by a previous run and returns the jobs
+     * that were not acknowledged, indexed and sorted by sequence
+     * number. Must be called before appending any record.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized TreeMap<Long, J> recover() throws IOException {
+        TreeMap<Long, byte[]> pending = new TreeMap<Long, byte[]>();
+        TreeMap<Long, J> jobs = new TreeMap<Long, J>();
+
+        for (File file : listSegments()) {
+            Segment segment = new Segment(file, getNumber(file));
+
+            segments.put(segment.number, segment);
+            nextSegment = Math.max(nextSegment, segment.number + 1);
+            read(segment, pending);
+        }
+
+        for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+            Long seq = entry.getKey();
+
+            try {
+                jobs.put(seq, (J) Serializer.fromBytes(entry.getValue()));
+            } catch (IOException e) {
+                logger.error("Error reading job " + seq + " from journal "
+                        + name + ". Job lost.", e);
+                release(seq);
+            }
+        }
+
+        deleteAcknowledged();
+
+        return jobs;
+    }
+
+    /**
+     * Records the job and returns its sequence number.
+     */
+    public synchronized long append(J job) throws IOException {
+        byte[] bytes = Serializer.toBytes(job);
+        long seq = nextSeq++;
+        MappedByteBuffer buffer;
+        int position;
+
+        buffer = reserve(ENQUEUE_HEADER_SIZE + bytes.length);
+        position = buffer.position();
+
+        /* The type is written last, so partial records are ignored */
+        buffer.putLong(position + 1, seq);
+        buffer.putInt(position + 1 + 8, bytes.length);
+        buffer.position(position + ENQUEUE_HEADER_SIZE);
+        buffer.put(bytes);
+        buffer.put(position, ENQUEUE);
+
+        current.live++;
+        owners.put(seq, current);
+
+        if (sync) {
+            buffer.force();
+        }
+
+        return seq;
+    }
+
+    /**
+     * Records that the job with the given sequence number has been
+     * processed.
+     */
+    public synchronized void ack(long seq) throws IOException {
+        MappedByteBuffer buffer;
+        int position;
+
+        if (!owners.containsKey(seq)) {
+            return;
+        }
+
+        buffer = reserve(ACK_SIZE);
+        position = buffer.position();
+
+        buffer.putLong(position + 1, seq);
+        buffer.position(position + ACK_SIZE);
+        buffer.put(position, ACK);
+
+        if (sync) {
+            buffer.force();
+        }
+
+        release(seq);
+        deleteAcknowledged();
+    }
+
+    /*
+     * Reads the records of the segment. Jobs are added to pending and
+     * removed from it when their acknowledgement is found.
+     */
+    private void read(Segment segment, TreeMap<Long, byte[]> pending)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+        MappedByteBuffer buffer;
+
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                long seq;
+
+                if (type == END) {
+                    break;
+                }
+
+                seq = buffer.getLong();
+                nextSeq = Math.max(nextSeq, seq + 1);
+
+                if (type == ENQUEUE) {
+                    int length = buffer.getInt();
+                    byte[] bytes;
+
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new BufferUnderflowException();
+                    }
+
+                    bytes = new byte[length];
+                    buffer.get(bytes);
+
+                    pending.put(seq, bytes);
+                    owners.put(seq, segment);
+                    segment.live++;
+                } else if (type == ACK) {
+                    pending.remove(seq);
+                    release(seq);
+                } else {
+                    logger.error("Invalid record on journal segment "
+                            + segment.file + ". Ignoring the rest.");
+                    break;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            logger.error("Truncated record on journal segment "
+                    + segment.file + ". Ignoring it.");
+        }
+    }
+
+    /*
+     * Returns the current segment positioned where a record of the
+     * given size can be written, creating a new segment when needed.
+     */
+    private MappedByteBuffer reserve(int size) throws IOException {
+        /* One more byte for the END mark */
+        if (current == null || current.buffer.remaining() < size + 1) {
+            current = createSegment(Math.max(segmentSize, size + 1));
+        }
+
+        return current.buffer;
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        long number = nextSegment++;
+        File file = new File(dir, String.format("%s-%020d%s", name, number,
+                SUFFIX));
+        RandomAccessFile raf;
+        Segment segment = new Segment(file, number);
+
+        /* Segments that could not be deleted are retried here */
+        retryDeletes();
+
+        raf = new RandomAccessFile(file, "rw");
+
+        try {
+            segment.buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+
+        segments.put(number, segment);
+        logger.debug("Journal segment " + file + " created");
+
+        return segment;
+    }
+
+    private void release(long seq) {
+        Segment segment = owners.remove(seq);
+
+        if (segment != null) {
+            segment.live--;
+        }
+    }
+
+    /*
+     * Deletes the oldest segments whose jobs have all been acknowledged.
+     * Segments are deleted in order, so acknowledgements are never
+     * removed before the jobs they refer to.
+     */
+    private void deleteAcknowledged() {
+        Iterator<Segment> it = segments.values().iterator();
+
+        while (it.hasNext()) {
+            Segment segment = it.next();
+
+            if (segment == current || segment.live > 0) {
+                break;
+            }
+
+            it.remove();
+
+            /* The mapping lasts until the buffer is garbage collected */
+            segment.buffer = null;
+
+            if (segment.file.delete()) {
+                logger.debug("Journal segment " + segment.file + " deleted");
+            } else {
+                logger.debug("Journal segment " + segment.file
+                        + " still in use. Deleting it later.");
+                undeleted.add(segment.file);
+            }
+        }
+    }
+
+    private void retryDeletes() {
+        Iterator<File> it = undeleted.iterator();
+
+        while (it.hasNext()) {
+            File file = it.next();
+
+            if (file.delete() || !file.exists()) {
+                logger.debug("Journal segment " + file + " deleted");
+                it.remove();
+            }
+        }
+    }
+
+    private File[] listSegments() {
+        final Pattern pattern = Pattern.compile(Pattern.quote(name)
+                + "-\\d{20}" + Pattern.quote(SUFFIX));
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String filename) {
+                return pattern.matcher(filename).matches();
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    private long getNumber(File file) {
+        String filename = file.getName();
+
+        return Long.parseLong(filename.substring(name.length() + 1,
+                filename.length() - SUFFIX.length()));
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long number;
+        private MappedByteBuffer buffer;
+        private int live;
+
+        public Segment(File file, long number) {
+            this.file = file;
+            this.number = number;
+            this.buffer = null;
+            this.live = 0;
+        }
+    }
+
+}
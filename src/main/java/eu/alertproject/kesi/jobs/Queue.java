@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2011-2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
  *
  * This program is free software; you can redistribute it and/or
  * modify it under the terms of the GNU General Public License
@@ -19,22 +19,296 @@
  *
  */
 
+
 package eu.alertproject.kesi.jobs;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
 
+/**
+ * Queue of jobs shared by producer and consumer threads.
+ *
+ * A queue can be bounded to a number of jobs. What happens when a
+ * producer puts a job on a full queue depends on its overflow policy:
+ * the producer waits until there is room (BLOCK), the job is dropped
+ * and counted (REJECT), or the job is written to a file on disk and
+ * read back once consumers catch up (SPILL). Jobs are taken in the
+ * same order they were put, whether they were spilled or not.
+ *
+ * A queue can also be backed by a journal. Jobs are then recorded on
+ * it when they are put and consumers must acknowledge them with ack()
+ * once they are processed. Jobs not acknowledged before a restart are
+ * put back on the queue by recover().
+ */
 public class Queue<J> {
-    private final LinkedBlockingQueue<J> queue;
+    public enum Overflow {
+        BLOCK, REJECT, SPILL
+    }
+
+    /* Capacity of unbounded queues */
+    public static final int UNBOUNDED = 0;
+
+    private static Logger logger = Logger.getLogger(Queue.class);
+
+    private final LinkedList<J> queue;
+    private final int capacity;
+    private final Overflow overflow;
+    private final SpillFile<J> spill;
+    private final Journal<J> journal;
+    private long rejected;
+
+    /* Sequence numbers on the journal of the jobs not acknowledged */
+    private final IdentityHashMap<J, Long> journaled;
 
     public Queue() {
-        queue = new LinkedBlockingQueue<J>();
+        this(UNBOUNDED, Overflow.BLOCK, null);
+    }
+
+    /**
+     * Creates a queue that holds up to capacity jobs in memory. When
+     * the overflow policy is SPILL, jobs must be serializable and are
+     * spilled to a file created on spillDir (or on the default
+     * temporary directory when it is null).
+     */
+    public Queue(int capacity, Overflow overflow, File spillDir) {
+        this(capacity, overflow, spillDir, null);
+    }
+
+    /**
+     * Creates a queue backed by the given journal. Jobs are already on
+     * disk, so they are not spilled; SPILL behaves like BLOCK.
+     */
+    public Queue(int capacity, Overflow overflow, File spillDir,
+            Journal<J> journal) {
+        SpillFile<J> aux = null;
+
+        this.queue = new LinkedList<J>();
+        this.capacity = Math.max(UNBOUNDED, capacity);
+        this.journal = journal;
+        this.journaled = new IdentityHashMap<J, Long>();
+        this.rejected = 0;
+
+        if (overflow == Overflow.SPILL && journal != null) {
+            overflow = Overflow.BLOCK;
+        }
+
+        if (overflow == Overflow.SPILL && this.capacity != UNBOUNDED) {
+            try {
+                aux = new SpillFile<J>("kesi-queue", spillDir);
+                logger.debug("Queue spilling to " + aux.getFile());
+            } catch (IOException e) {
+                logger.error("Error creating spill file. Queue will block "
+                        + "when it is full.", e);
+                overflow = Overflow.BLOCK;
+            }
+        }
+
+        this.overflow = overflow;
+        this.spill = aux;
+    }
+
+    public synchronized J take() throws InterruptedException {
+        J j;
+
+        while ((j = next()) == null) {
+            wait();
+        }
+
+        return j;
+    }
+
+    /*
+     * Waits up to the given time for an element. Returns null when no
+     * element is available before the timeout expires.
+     */
+    public synchronized J poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        J j;
+
+        while ((j = next()) == null) {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0) {
+                return null;
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return j;
+    }
+
+    /**
+     * Puts the job on the queue. Returns false when the queue is full
+     * and its policy is REJECT.
+     */
+    public synchronized boolean put(J j) throws InterruptedException {
+        if (spill != null && (isFull() || !spill.isEmpty())) {
+            try {
+                spill.write(j);
+                notifyAll();
+                return true;
+            } catch (IOException e) {
+                logger.error("Error spilling job. Waiting for room.", e);
+            }
+        }
+
+        /* Jobs on the spill file must be taken first */
+        while (isFull() || (spill != null && !spill.isEmpty())) {
+            if (overflow == Overflow.REJECT) {
+                ++rejected;
+                return false;
+            }
+
+            wait();
+        }
+
+        record(j);
+        queue.add(j);
+        notifyAll();
+
+        return true;
     }
 
-    public J take() throws InterruptedException {
-        return queue.take();
+    /**
+     * Marks the job as processed, so it will not be recovered after a
+     * restart. Does nothing when the queue has no journal.
+     */
+    public synchronized void ack(J j) {
+        Long seq;
+
+        if (journal == null) {
+            return;
+        }
+
+        seq = journaled.remove(j);
+
+        if (seq == null) {
+            return;
+        }
+
+        try {
+            journal.ack(seq);
+        } catch (IOException e) {
+            logger.error("Error acknowledging job on journal", e);
+        }
     }
 
-    public void put(J j) throws InterruptedException {
-        queue.put(j);
+    /**
+     * Puts back at the head of the queue the jobs that were not
+     * acknowledged before the last restart and returns them. Must be
+     * called before putting any job.
+     */
+    public synchronized List<J> recover() {
+        TreeMap<Long, J> jobs;
+
+        if (journal == null) {
+            return new ArrayList<J>();
+        }
+
+        try {
+            jobs = journal.recover();
+        } catch (IOException e) {
+            logger.error("Error recovering jobs from journal", e);
+            return new ArrayList<J>();
+        }
+
+        for (Map.Entry<Long, J> entry : jobs.descendingMap().entrySet()) {
+            journaled.put(entry.getValue(), entry.getKey());
+            queue.addFirst(entry.getValue());
+        }
+
+        notifyAll();
+
+        return new ArrayList<J>(jobs.values());
+    }
+
+    /*
+     * Returns the number of elements waiting on the queue, including
+     * those spilled to disk
+     */
+    public synchronized int size() {
+        return queue.size() + getSpilled();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
     }
+
+    public synchronized int getSpilled() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /*
+     * Records the job on the journal. When it can not be written, the
+     * job is only kept in memory.
+     */
+    private void record(J j) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journaled.put(j, journal.append(j));
+        } catch (IOException e) {
+            logger.error("Error writing job on journal", e);
+        }
+    }
+
+    private boolean isFull() {
+        return capacity != UNBOUNDED && queue.size() >= capacity;
+    }
+
+    /*
+     * Removes the first job, or returns null when the queue is empty
+     */
+    private J next() {
+        if (queue.isEmpty() && spill != null) {
+            refill();
+        }
+
+        if (queue.isEmpty()) {
+            return null;
+        }
+
+        J j = queue.removeFirst();
+        notifyAll();
+
+        return j;
+    }
+
+    /*
+     * Moves jobs from the spill file to memory
+     */
+    private void refill() {
+        while (!spill.isEmpty() && !isFull()) {
+            try {
+                queue.add(spill.read());
+            } catch (IOException e) {
+                /* The file can not be read any more */
+                logger.error("Error reading spill file. " + spill.size()
+                        + " jobs lost.", e);
+                spill.clear();
+            }
+        }
+    }
+
 }
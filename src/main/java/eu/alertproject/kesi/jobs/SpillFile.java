@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.jobs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * FIFO of serialized elements stored on a file. Each element is
+ * written as its length followed by its serialized form. The file is
+ * truncated every time all its elements have been read, so it only
+ * grows while the consumers are behind.
+ *
+ * This class is not thread-safe.
+ */
+public class SpillFile<J> {
+    private final File file;
+    private final RandomAccessFile raf;
+    private long readPosition;
+    private long writePosition;
+    private int size;
+
+    /**
+     * Creates the spill file on the directory dir, or on the default
+     * temporary directory when dir is null.
+     */
+    public SpillFile(String prefix, File dir) throws IOException {
+        file = File.createTempFile(prefix, ".spill", dir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        readPosition = 0;
+        writePosition = 0;
+        size = 0;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void write(J element) throws IOException {
+        byte[] bytes = Serializer.toBytes(element);
+
+        raf.seek(writePosition);
+        raf.writeInt(bytes.length);
+        raf.write(bytes);
+
+        writePosition = raf.getFilePointer();
+        ++size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public J read() throws IOException {
+        byte[] bytes;
+
+        if (size == 0) {
+            return null;
+        }
+
+        raf.seek(readPosition);
+        bytes = new byte[raf.readInt()];
+        raf.readFully(bytes);
+
+        readPosition = raf.getFilePointer();
+        --size;
+
+        if (size == 0) {
+            truncate();
+        }
+
+        return (J) Serializer.fromBytes(bytes);
+    }
+
+    /**
+     * Discards every element of the file.
+     */
+    public void clear() {
+        size = 0;
+
+        try {
+            truncate();
+        } catch (IOException e) {
+            /* Positions were reset, so the file contents are ignored */
+        }
+    }
+
+    private void truncate() throws IOException {
+        readPosition = 0;
+        writePosition = 0;
+        raf.setLength(0);
+    }
+
+}
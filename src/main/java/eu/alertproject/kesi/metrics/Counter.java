@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.metrics;
+
+/**
+ * Counts occurrences of something, like events published on a topic
+ * or errors of a source. Rates are given in occurrences per second;
+ * the recent rate is the rate during the last sampling interval.
+ */
+public class Counter implements CounterMBean {
+    private final String name;
+    private final long created;
+    private long count;
+    private long lastCount;
+    private long lastSample;
+    private double recentRate;
+
+    public Counter(String name) {
+        this.name = name;
+        this.created = System.currentTimeMillis();
+        this.count = 0;
+        this.lastCount = 0;
+        this.lastSample = created;
+        this.recentRate = 0.0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void increment() {
+        ++count;
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized double getMeanRate() {
+        return rate(count, System.currentTimeMillis() - created);
+    }
+
+    @Override
+    public synchronized double getRecentRate() {
+        return recentRate;
+    }
+
+    /*
+     * Closes the current sampling interval
+     */
+    synchronized void sample() {
+        long now = System.currentTimeMillis();
+
+        recentRate = rate(count - lastCount, now - lastSample);
+        lastCount = count;
+        lastSample = now;
+    }
+
+    private static double rate(long n, long millis) {
+        return millis <= 0 ? 0.0 : n * 1000.0 / millis;
+    }
+
+}
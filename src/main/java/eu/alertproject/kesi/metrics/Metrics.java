@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.jobs.Queue;
+
+/**
+ * Collects the metrics of KESI: the number of jobs waiting on each
+ * queue, the time spent on each stage of the pipeline, the events
+ * published per topic, the errors of each source and the extractions
+ * of each source suppressed by merging requests.
+ *
+ * Metrics are exposed as MBeans under the eu.alertproject.kesi domain
+ * and, every few seconds, written to the log in a single line. Metrics
+ * can be recorded before the service is started; they are exported
+ * once it starts.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum Metrics {
+    INSTANCE;
+
+    /*
+     * Stages of the pipeline. Runs of the extractors are timed under
+     * the name of their tool (i.e, cvsanaly2 or bicho).
+     */
+    public static final String STAGE_DOWNLOAD = "download";
+    public static final String STAGE_SUMMARY = "summary";
+    public static final String STAGE_HYDRATION = "hydration";
+    public static final String STAGE_MARSHAL = "marshal";
+    public static final String STAGE_PUBLISH = "publish";
+    public static final String STAGE_CHECKPOINT = "checkpoint";
+
+    private static final String DOMAIN = "eu.alertproject.kesi";
+
+    private static Logger logger = Logger.getLogger(Metrics.class);
+
+    private final ConcurrentMap<String, QueueGauge> queues = new ConcurrentHashMap<String, QueueGauge>();
+    private final ConcurrentMap<String, StageTimer> stages = new ConcurrentHashMap<String, StageTimer>();
+    private final ConcurrentMap<String, Counter> topics = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Counter> errors = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Counter> suppressed = new ConcurrentHashMap<String, Counter>();
+
+    private volatile boolean jmx = false;
+    private Reporter reporter;
+
+    public void start() {
+        long interval;
+        boolean log;
+
+        if (reporter != null) {
+            logger.error("Metrics service is already running");
+            return;
+        }
+
+        interval = Math.max(1000,
+                PreferencesManager.INSTANCE.getMetricsInterval());
+        log = PreferencesManager.INSTANCE.getMetricsLog();
+
+        if (PreferencesManager.INSTANCE.getMetricsJMX()) {
+            synchronized (this) {
+                jmx = true;
+
+                for (QueueGauge queue : queues.values()) {
+                    register("Queue", queue.getName(), queue);
+                }
+                for (StageTimer stage : stages.values()) {
+                    register("Stage", stage.getName(), stage);
+                }
+                for (Counter topic : topics.values()) {
+                    register("Topic", topic.getName(), topic);
+                }
+                for (Counter source : errors.values()) {
+                    register("SourceErrors", source.getName(), source);
+                }
+                for (Counter source : suppressed.values()) {
+                    register("SuppressedRuns", source.getName(), source);
+                }
+            }
+        }
+
+        reporter = new Reporter(interval, log);
+        reporter.setName("MetricsReporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    public void stop() {
+        if (reporter == null) {
+            logger.error("Metrics service is not running");
+            return;
+        }
+
+        reporter.interrupt();
+
+        try {
+            reporter.join();
+        } catch (InterruptedException e) {
+            logger.error("Unexpected error stopping metrics thread", e);
+            throw new RuntimeException(e);
+        }
+
+        reporter = null;
+    }
+
+    /**
+     * Reports the depth of the queue under the given name.
+     */
+    public void registerQueue(String name, Queue<?> queue) {
+        QueueGauge gauge = new QueueGauge(name, queue);
+
+        queues.put(name, gauge);
+        export("Queue", name, gauge);
+    }
+
+    /**
+     * Adds the time elapsed since start, as given by System.nanoTime(),
+     * to the stage.
+     */
+    public void time(String stage, long start) {
+        long elapsed = System.nanoTime() - start;
+        StageTimer timer = stages.get(stage);
+
+        if (timer == null) {
+            StageTimer aux = new StageTimer(stage);
+
+            timer = stages.putIfAbsent(stage, aux);
+
+            if (timer == null) {
+                timer = aux;
+                export("Stage", stage, timer);
+            }
+        }
+
+        timer.update(elapsed);
+    }
+
+    /**
+     * Counts an event published on the topic.
+     */
+    public void published(String topic) {
+        getCounter(topics, "Topic", topic).increment();
+    }
+
+    /**
+     * Counts an error extracting or publishing the source identified
+     * by url.
+     */
+    public void error(String url) {
+        getCounter(errors, "SourceErrors", url).increment();
+    }
+
+    /**
+     * Counts a request to extract the source identified by url that
+     * was merged with another one instead of running on its own.
+     */
+    public void suppressed(String url) {
+        getCounter(suppressed, "SuppressedRuns", url).increment();
+    }
+
+    /**
+     * Returns the current metrics in a single line.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("queues:");
+        for (QueueGauge queue : sorted(queues).values()) {
+            sb.append(' ').append(queue.getName()).append('=')
+                    .append(queue.getSize());
+
+            if (queue.getSpilled() > 0) {
+                sb.append(" (").append(queue.getSpilled())
+                        .append(" spilled)");
+            }
+            if (queue.getRejected() > 0) {
+                sb.append(" (").append(queue.getRejected())
+                        .append(" rejected)");
+            }
+        }
+
+        sb.append(" | stages (runs/mean ms):");
+        for (StageTimer stage : sorted(stages).values()) {
+            sb.append(' ').append(stage.getName()).append('=')
+                    .append(stage.getCount()).append('/')
+                    .append(format(stage.getMeanTime()));
+        }
+
+        sb.append(" | events/s:");
+        for (Counter topic : sorted(topics).values()) {
+            sb.append(' ').append(topic.getName()).append('=')
+                    .append(format(topic.getRecentRate()));
+        }
+
+        sb.append(" | errors:");
+        for (Counter source : sorted(errors).values()) {
+            sb.append(' ').append(source.getName()).append('=')
+                    .append(source.getCount());
+        }
+
+        sb.append(" | suppressed:");
+        for (Counter source : sorted(suppressed).values()) {
+            sb.append(' ').append(source.getName()).append('=')
+                    .append(source.getCount());
+        }
+
+        return sb.toString();
+    }
+
+    private Counter getCounter(ConcurrentMap<String, Counter> counters,
+            String type, String name) {
+        Counter counter = counters.get(name);
+
+        if (counter == null) {
+            Counter aux = new Counter(name);
+
+            counter = counters.putIfAbsent(name, aux);
+
+            if (counter == null) {
+                counter = aux;
+                export(type, name, counter);
+            }
+        }
+
+        return counter;
+    }
+
+    private void sample() {
+        for (StageTimer stage : stages.values()) {
+            stage.sample();
+        }
+        for (Counter topic : topics.values()) {
+            topic.sample();
+        }
+        for (Counter source : errors.values()) {
+            source.sample();
+        }
+        for (Counter source : suppressed.values()) {
+            source.sample();
+        }
+    }
+
+    private void export(String type, String name, Object mbean) {
+        if (!jmx) {
+            return;
+        }
+
+        synchronized (this) {
+            register(type, name, mbean);
+        }
+    }
+
+    /*
+     * Registers the MBean on the platform server. Must be called
+     * holding the lock of this object.
+     */
+    private void register(String type, String name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type
+                    + ",name=" + ObjectName.quote(name));
+
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            logger.warn("Error registering MBean " + type + " " + name, e);
+        }
+    }
+
+    private static <V> TreeMap<String, V> sorted(Map<String, V> map) {
+        return new TreeMap<String, V>(map);
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    private class Reporter extends Thread {
+        private final long interval;
+        private final boolean log;
+
+        public Reporter(long interval, boolean log) {
+            this.interval = interval;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                sample();
+
+                if (log) {
+                    logger.info(report());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.metrics;
+
+import eu.alertproject.kesi.jobs.Queue;
+
+/**
+ * Reports the number of jobs waiting on a queue, how many of them are
+ * spilled to disk and how many were rejected because the queue was
+ * full. A capacity of 0 means the queue is unbounded.
+ */
+public class QueueGauge implements QueueGaugeMBean {
+    private final String name;
+    private final Queue<?> queue;
+
+    public QueueGauge(String name, Queue<?> queue) {
+        this.name = name;
+        this.queue = queue;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getSize() {
+        return queue.size();
+    }
+
+    @Override
+    public int getCapacity() {
+        return queue.getCapacity();
+    }
+
+    @Override
+    public int getSpilled() {
+        return queue.getSpilled();
+    }
+
+    @Override
+    public long getRejected() {
+        return queue.getRejected();
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.metrics;
+
+/**
+ * Accumulates the time spent on a stage of the pipeline. Times are
+ * reported in milliseconds. The recent mean is the mean time of the
+ * runs finished during the last sampling interval.
+ */
+public class StageTimer implements StageTimerMBean {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private long count;
+    private long total;
+    private long max;
+    private long lastCount;
+    private long lastTotal;
+    private double recentMean;
+
+    public StageTimer(String name) {
+        this.name = name;
+        reset();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void update(long nanos) {
+        ++count;
+        total += nanos;
+
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized double getTotalTime() {
+        return total / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public synchronized double getMeanTime() {
+        return count == 0 ? 0.0 : total / NANOS_PER_MILLI / count;
+    }
+
+    @Override
+    public synchronized double getMaxTime() {
+        return max / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public synchronized double getRecentMeanTime() {
+        return recentMean;
+    }
+
+    @Override
+    public synchronized void reset() {
+        count = 0;
+        total = 0;
+        max = 0;
+        lastCount = 0;
+        lastTotal = 0;
+        recentMean = 0.0;
+    }
+
+    /*
+     * Closes the current sampling interval
+     */
+    synchronized void sample() {
+        long n = count - lastCount;
+
+        recentMean = n == 0 ? 0.0 : (total - lastTotal) / NANOS_PER_MILLI
+                / n;
+        lastCount = count;
+        lastTotal = total;
+    }
+
+}
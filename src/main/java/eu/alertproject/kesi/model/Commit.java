@@ -22,12 +22,9 @@
 
 package eu.alertproject.kesi.model;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
@@ -140,20 +137,7 @@ public class Commit extends Entity {
     }
 
     public String toXML() throws JAXBException {
-        String xml;
-        JAXBContext context = JAXBContext.newInstance(Commit.class);
-        Marshaller marshaller = context.createMarshaller();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.marshal(this, stream);
-        xml = stream.toString();
-        xml = xml
-                .replace(
-                        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>",
-                        "");
-
-        return xml;
+        return EntityMarshaller.INSTANCE.marshal(this);
     }
 
     public Event toEvent() throws JAXBException {
@@ -163,6 +147,7 @@ public class Commit extends Entity {
         event.setEventDate(commitDate);
         event.setContent(toXML());
         event.setSourceURI(repositoryURI.toASCIIString());
+        event.setEventKey(commitID);
 
         return event;
     }
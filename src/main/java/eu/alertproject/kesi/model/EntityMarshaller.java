@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.model;
+
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Marshals entities to XML using a single JAXB context shared by every
+ * thread. Building a JAXB context is very expensive, so it is created
+ * only once. Marshallers are not thread-safe; they are kept in a pool
+ * and reused between calls.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum EntityMarshaller {
+    INSTANCE;
+
+    private final ConcurrentLinkedQueue<Marshaller> pool = new ConcurrentLinkedQueue<Marshaller>();
+    private volatile JAXBContext context;
+    private volatile boolean formatted = true;
+
+    /**
+     * Sets whether the XML will be indented or written in a compact
+     * form. By default, output is indented.
+     */
+    public void setFormattedOutput(boolean formatted) {
+        this.formatted = formatted;
+    }
+
+    public boolean isFormattedOutput() {
+        return formatted;
+    }
+
+    public String marshal(Entity entity) throws JAXBException {
+        Marshaller marshaller = acquire();
+        StringWriter writer = new StringWriter();
+
+        try {
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formatted);
+            marshaller.marshal(entity, writer);
+        } finally {
+            release(marshaller);
+        }
+
+        return writer.toString();
+    }
+
+    private Marshaller acquire() throws JAXBException {
+        Marshaller marshaller = pool.poll();
+
+        if (marshaller != null) {
+            return marshaller;
+        }
+
+        marshaller = getContext().createMarshaller();
+        /* Events are embedded in a SOAP envelope, skip XML declaration */
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+
+        return marshaller;
+    }
+
+    private void release(Marshaller marshaller) {
+        pool.offer(marshaller);
+    }
+
+    private JAXBContext getContext() throws JAXBException {
+        if (context == null) {
+            synchronized (this) {
+                if (context == null) {
+                    context = JAXBContext.newInstance(Commit.class,
+                            Issue.class);
+                }
+            }
+        }
+
+        return context;
+    }
+
+}
@@ -22,14 +22,11 @@
 
 package eu.alertproject.kesi.model;
 
-import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
@@ -314,20 +311,7 @@ public class Issue extends Entity {
     }
 
     public String toXML() throws JAXBException {
-        String xml;
-        JAXBContext context = JAXBContext.newInstance(Issue.class);
-        Marshaller marshaller = context.createMarshaller();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.marshal(this, stream);
-        xml = stream.toString();
-        xml = xml
-                .replace(
-                        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>",
-                        "");
-
-        return xml;
+        return EntityMarshaller.INSTANCE.marshal(this);
     }
 
     public Event toEvent() throws JAXBException {
@@ -60,6 +60,7 @@ public class Repository extends StructuredKnowledgeSource {
         repo.setPassword(source.getPassword());
         repo.setSetup(source.getSetup());
         repo.setDate(source.getDate());
+        repo.setLastID(source.getLastID());
 
         return repo;
     }
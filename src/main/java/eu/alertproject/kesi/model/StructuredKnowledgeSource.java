@@ -31,6 +31,9 @@ import eu.alertproject.kesi.jobs.Job;
 
 @XmlTransient
 public class StructuredKnowledgeSource extends Entity {
+    /* Value of lastID when the id of the last event is unknown */
+    public static final int NO_ID = -1;
+
     private String id;
     private URI uri;
     private String type;
@@ -38,6 +41,7 @@ public class StructuredKnowledgeSource extends Entity {
     private String password;
     private int setup;
     private Date date;
+    private int lastID = NO_ID;
 
     public StructuredKnowledgeSource() {
     }
@@ -112,4 +116,55 @@ public class StructuredKnowledgeSource extends Entity {
         this.date = date;
     }
 
+    /**
+     * Returns the id on the source database of the last event sent,
+     * or NO_ID when it is unknown. Together with the date, it marks
+     * the point where the next events start.
+     */
+    @XmlTransient
+    public synchronized int getLastID() {
+        return lastID;
+    }
+
+    public synchronized void setLastID(int lastID) {
+        this.lastID = lastID;
+    }
+
+    /**
+     * Returns the date and the id of the last event sent as they were
+     * at the same moment.
+     */
+    @XmlTransient
+    public synchronized Watermark getWatermark() {
+        return new Watermark(date, lastID);
+    }
+
+    /**
+     * Sets the date and the id of the last event sent in one step, so
+     * readers never see the date of one event with the id of another.
+     */
+    public synchronized void setWatermark(Date date, int lastID) {
+        this.date = date;
+        this.lastID = lastID;
+    }
+
+    /* Point where the next events of a source start */
+    public static class Watermark {
+        private final Date date;
+        private final int lastID;
+
+        public Watermark(Date date, int lastID) {
+            this.date = date;
+            this.lastID = lastID;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public int getLastID() {
+            return lastID;
+        }
+    }
+
 }
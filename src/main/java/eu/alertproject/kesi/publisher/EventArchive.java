@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+import eu.alertproject.kesi.database.Database;
+import eu.alertproject.kesi.events.Event;
+
+/**
+ * Append-only archive of the events published. Events are written on
+ * segment files, in blocks that can be compressed. A new segment is
+ * started when the current one reaches its maximum size or age.
+ *
+ * When a segment is closed, the dates of its events are added to the
+ * catalog of the archive, one entry per source, so the events of a
+ * time range can be replayed reading only the segments that hold them
+ * (see EventArchiveReader). Segments left without catalog entries by a
+ * crash are scanned and cataloged when the archive is opened again.
+ *
+ * Segment format: a sequence of blocks with a header (codec, raw length
+ * and stored length) followed by the records, deflated when the codec
+ * is CODEC_DEFLATE. Each record has the source URI, the date of the
+ * event in ms, its name, its id and the message.
+ *
+ * Compressed blocks are written when they are full, when they are
+ * older than a second, when the segment is rolled and on flush().
+ * Uncompressed events are written right away.
+ */
+public class EventArchive {
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    /* Codec, raw length and stored length */
+    static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+
+    static final String SEGMENT_SUFFIX = ".archive";
+    static final String CATALOG_NAME = "catalog.idx";
+
+    private static final Pattern SEGMENT_PATTERN = Pattern
+            .compile("events-\\d{20}" + Pattern.quote(SEGMENT_SUFFIX));
+
+    private static final long BLOCK_MAX_AGE = 1000;
+
+    private static Logger logger = Logger.getLogger(EventArchive.class);
+
+    private final File dir;
+    private final long segmentSize;
+    private final long segmentTime;
+    private final boolean compress;
+    private final int blockSize;
+
+    private long nextSegment;
+    private long segmentNumber;
+    private long segmentCreated;
+    private long segmentBytes;
+    private FileOutputStream segment;
+
+    /* Dates of the events of the open segment, per source */
+    private final HashMap<String, CatalogEntry> summary;
+
+    /* Records not written yet when compression is enabled */
+    private final ByteArrayOutputStream block;
+    private final DataOutputStream records;
+    private long blockCreated;
+
+    public EventArchive(File dir, long segmentSize, long segmentTime,
+            boolean compress, int blockSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Error creating archive directory "
+                    + dir.getPath());
+        }
+
+        this.dir = dir;
+        this.segmentSize = Math.max(1, segmentSize);
+        this.segmentTime = Math.max(1, segmentTime);
+        this.compress = compress;
+        this.blockSize = Math.max(1024, blockSize);
+        this.summary = new HashMap<String, CatalogEntry>();
+        this.block = new ByteArrayOutputStream();
+        this.records = new DataOutputStream(block);
+        this.segment = null;
+
+        recover();
+    }
+
+    /**
+     * Appends the event with the given encoded message to the archive.
+     */
+    public synchronized void append(Event event, byte[] message,
+            int offset, int length) throws IOException {
+        long date = getDate(event);
+
+        if (segment == null || segmentBytes >= segmentSize
+                || System.currentTimeMillis() - segmentCreated >= segmentTime) {
+            roll();
+        }
+
+        if (block.size() == 0) {
+            blockCreated = System.currentTimeMillis();
+        }
+
+        records.writeUTF(event.getSourceURI());
+        records.writeLong(date);
+        records.writeUTF(event.getEventName());
+        records.writeUTF(event.getEventID());
+        records.writeInt(length);
+        records.write(message, offset, length);
+
+        summarize(event.getSourceURI(), date);
+
+        if (!compress || block.size() >= blockSize
+                || System.currentTimeMillis() - blockCreated >= BLOCK_MAX_AGE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the records not written yet.
+     */
+    public synchronized void flush() throws IOException {
+        writeBlock();
+    }
+
+    /**
+     * Closes the current segment and adds it to the catalog.
+     */
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+
+        segmentNumber = nextSegment++;
+        segmentCreated = System.currentTimeMillis();
+        segmentBytes = 0;
+        segment = new FileOutputStream(getSegmentFile(dir, segmentNumber));
+
+        logger.debug("Archive segment " + segmentNumber + " created");
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+
+        try {
+            writeBlock();
+        } finally {
+            segment.close();
+            segment = null;
+        }
+
+        appendCatalog(segmentNumber, summary.values());
+        summary.clear();
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] raw;
+        byte[] stored;
+        byte codec;
+        ByteArrayOutputStream header;
+        DataOutputStream out;
+
+        if (block.size() == 0) {
+            return;
+        }
+
+        raw = block.toByteArray();
+        block.reset();
+
+        if (compress) {
+            codec = CODEC_DEFLATE;
+            stored = deflate(raw);
+        } else {
+            codec = CODEC_NONE;
+            stored = raw;
+        }
+
+        header = new ByteArrayOutputStream(BLOCK_HEADER_SIZE);
+        out = new DataOutputStream(header);
+        out.writeByte(codec);
+        out.writeInt(raw.length);
+        out.writeInt(stored.length);
+
+        segment.write(header.toByteArray());
+        segment.write(stored);
+        segmentBytes += BLOCK_HEADER_SIZE + stored.length;
+    }
+
+    private void summarize(String source, long date) {
+        CatalogEntry entry = summary.get(source);
+
+        if (entry == null) {
+            entry = new CatalogEntry(segmentNumber, source, date, date, 0);
+            summary.put(source, entry);
+        }
+
+        entry.add(date);
+    }
+
+    private void appendCatalog(long number,
+            Iterable<CatalogEntry> entries) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                new File(dir, CATALOG_NAME), true));
+
+        try {
+            for (CatalogEntry entry : entries) {
+                out.writeLong(number);
+                out.writeUTF(entry.source);
+                out.writeLong(entry.minDate);
+                out.writeLong(entry.maxDate);
+                out.writeInt(entry.count);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * Catalogs the segments left open by a previous run and sets the
+     * number of the next segment.
+     */
+    private void recover() throws IOException {
+        HashSet<Long> cataloged = new HashSet<Long>();
+
+        for (CatalogEntry entry : readCatalog(dir)) {
+            cataloged.add(entry.segment);
+        }
+
+        nextSegment = 0;
+
+        for (long number : listSegments(dir)) {
+            nextSegment = Math.max(nextSegment, number + 1);
+
+            if (!cataloged.contains(number)) {
+                final HashMap<String, CatalogEntry> entries = new HashMap<String, CatalogEntry>();
+                final long n = number;
+
+                scanSegment(dir, number, new RecordHandler() {
+                    @Override
+                    public void handle(String source, long date, String name,
+                            String id, byte[] message) {
+                        CatalogEntry entry = entries.get(source);
+
+                        if (entry == null) {
+                            entry = new CatalogEntry(n, source, date, date, 0);
+                            entries.put(source, entry);
+                        }
+
+                        entry.add(date);
+                    }
+                });
+
+                appendCatalog(number, entries.values());
+                logger.info("Archive segment " + number + " cataloged");
+            }
+        }
+    }
+
+    /* Events without a valid date are cataloged as dated on the epoch */
+    private static long getDate(Event event) {
+        String date = event.getEventDate();
+
+        if (date == null) {
+            return 0;
+        }
+
+        try {
+            return Database.stringToDate(date).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                raw.length / 2 + 64);
+        byte[] buf = new byte[8192];
+
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] stored, int rawLength)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[rawLength];
+
+        try {
+            inflater.setInput(stored);
+
+            if (inflater.inflate(raw) != rawLength) {
+                throw new IOException("Invalid compressed block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed block. "
+                    + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        return raw;
+    }
+
+    static File getSegmentFile(File dir, long number) {
+        return new File(dir, String.format("events-%020d%s", number,
+                SEGMENT_SUFFIX));
+    }
+
+    /*
+     * Returns the numbers of the segments of the archive, sorted
+     */
+    static long[] listSegments(File dir) {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return SEGMENT_PATTERN.matcher(name).matches();
+            }
+        });
+        long[] numbers;
+
+        if (names == null) {
+            return new long[0];
+        }
+
+        numbers = new long[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Long.parseLong(names[i].substring(7,
+                    names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+
+        Arrays.sort(numbers);
+
+        return numbers;
+    }
+
+    static ArrayList<CatalogEntry> readCatalog(File dir) throws IOException {
+        ArrayList<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+        File file = new File(dir, CATALOG_NAME);
+        DataInputStream in;
+
+        if (!file.exists()) {
+            return entries;
+        }
+
+        in = new DataInputStream(new FileInputStream(file));
+
+        try {
+            while (true) {
+                long segment = in.readLong();
+                String source = in.readUTF();
+                long minDate = in.readLong();
+                long maxDate = in.readLong();
+                int count = in.readInt();
+
+                entries.add(new CatalogEntry(segment, source, minDate,
+                        maxDate, count));
+            }
+        } catch (EOFException e) {
+            /* End of catalog; a truncated entry is ignored */
+        } finally {
+            in.close();
+        }
+
+        return entries;
+    }
+
+    /*
+     * Reads the records of the segment, mapping it in memory. Reading
+     * stops at the first truncated block, left by a crash.
+     */
+    static void scanSegment(File dir, long number, RecordHandler handler)
+            throws IOException {
+        File file = getSegmentFile(dir, number);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            while (buffer.remaining() >= BLOCK_HEADER_SIZE) {
+                byte codec = buffer.get();
+                int rawLength = buffer.getInt();
+                int storedLength = buffer.getInt();
+                byte[] stored;
+                byte[] raw;
+
+                if (storedLength < 0 || storedLength > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+
+                stored = new byte[storedLength];
+                buffer.get(stored);
+
+                if (codec == CODEC_DEFLATE) {
+                    raw = inflate(stored, rawLength);
+                } else {
+                    raw = stored;
+                }
+
+                readRecords(raw, handler);
+            }
+        } catch (BufferUnderflowException e) {
+            logger.warn("Truncated block on archive segment " + file);
+        }
+    }
+
+    private static void readRecords(byte[] raw, RecordHandler handler)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                raw));
+
+        while (in.available() > 0) {
+            String source = in.readUTF();
+            long date = in.readLong();
+            String name = in.readUTF();
+            String id = in.readUTF();
+            byte[] message = new byte[in.readInt()];
+
+            in.readFully(message);
+            handler.handle(source, date, name, id, message);
+        }
+    }
+
+    interface RecordHandler {
+        void handle(String source, long date, String name, String id,
+                byte[] message) throws IOException;
+    }
+
+    /*
+     * Dates of the events of a source on a segment
+     */
+    static class CatalogEntry {
+        final long segment;
+        final String source;
+        long minDate;
+        long maxDate;
+        int count;
+
+        CatalogEntry(long segment, String source, long minDate,
+                long maxDate, int count) {
+            this.segment = segment;
+            this.source = source;
+            this.minDate = minDate;
+            this.maxDate = maxDate;
+            this.count = count;
+        }
+
+        void add(long date) {
+            minDate = Math.min(minDate, date);
+            maxDate = Math.max(maxDate, date);
+            ++count;
+        }
+
+        boolean overlaps(long from, long to) {
+            return minDate <= to && maxDate >= from;
+        }
+    }
+
+}
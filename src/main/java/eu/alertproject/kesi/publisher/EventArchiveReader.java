@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import eu.alertproject.kesi.publisher.EventArchive.CatalogEntry;
+import eu.alertproject.kesi.publisher.EventArchive.RecordHandler;
+
+/**
+ * Replays the events stored on an archive written by EventArchive.
+ * Only the segments with events of the source on the given time range,
+ * according to the catalog, are read. Segments not cataloged yet, such
+ * as the one being written, are always read.
+ */
+public class EventArchiveReader {
+    private final File dir;
+
+    public EventArchiveReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Calls the handler for each event of the source, or of every
+     * source when it is null, dated between from and to, both included.
+     * Events are replayed in the order they were archived.
+     */
+    public void replay(final String source, Date from, Date to,
+            final Handler handler) throws IOException {
+        final long fromTime = from == null ? Long.MIN_VALUE : from.getTime();
+        final long toTime = to == null ? Long.MAX_VALUE : to.getTime();
+        TreeSet<Long> segments = new TreeSet<Long>();
+        HashSet<Long> cataloged = new HashSet<Long>();
+
+        for (CatalogEntry entry : EventArchive.readCatalog(dir)) {
+            cataloged.add(entry.segment);
+
+            if ((source == null || source.equals(entry.source))
+                    && entry.overlaps(fromTime, toTime)) {
+                segments.add(entry.segment);
+            }
+        }
+
+        for (long number : EventArchive.listSegments(dir)) {
+            if (!cataloged.contains(number)) {
+                segments.add(number);
+            }
+        }
+
+        for (long number : segments) {
+            EventArchive.scanSegment(dir, number, new RecordHandler() {
+                @Override
+                public void handle(String s, long date, String name,
+                        String id, byte[] message) throws IOException {
+                    if ((source == null || source.equals(s))
+                            && date >= fromTime && date <= toTime) {
+                        handler.handle(new ArchivedEvent(s, new Date(date),
+                                name, id, message));
+                    }
+                }
+            });
+        }
+    }
+
+    public interface Handler {
+        void handle(ArchivedEvent event) throws IOException;
+    }
+
+    public static class ArchivedEvent {
+        private final String sourceURI;
+        private final Date date;
+        private final String name;
+        private final String id;
+        private final byte[] message;
+
+        public ArchivedEvent(String sourceURI, Date date, String name,
+                String id, byte[] message) {
+            this.sourceURI = sourceURI;
+            this.date = date;
+            this.name = name;
+            this.id = id;
+            this.message = message;
+        }
+
+        public String getSourceURI() {
+            return sourceURI;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public String getEventName() {
+            return name;
+        }
+
+        public String getEventID() {
+            return id;
+        }
+
+        /**
+         * Returns the envelope of the event, encoded in UTF-8.
+         */
+        public byte[] getMessage() {
+            return message;
+        }
+    }
+
+}
@@ -22,17 +22,20 @@
 
 package eu.alertproject.kesi.publisher;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.Session;
 import javax.jms.TextMessage;
 import javax.jms.Topic;
@@ -46,13 +49,16 @@ import javax.naming.NamingException;
 
 import org.apache.log4j.Logger;
 
-import eu.alertproject.kesi.PreferencesError;
 import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.database.Database;
+import eu.alertproject.kesi.events.EnvelopeWriter;
 import eu.alertproject.kesi.events.Event;
 import eu.alertproject.kesi.events.EventFactory;
+import eu.alertproject.kesi.jobs.Journal;
 import eu.alertproject.kesi.jobs.Queue;
+import eu.alertproject.kesi.metrics.Metrics;
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
+import eu.alertproject.kesi.sources.SourcesCheckpointer;
 import eu.alertproject.kesi.sources.SourcesManager;
 import eu.alertproject.kesi.sources.SourcesManagerError;
 
@@ -72,10 +78,18 @@ public enum EventPublisher {
 
     public void start() {
         int maxMsgs;
+        int batchSize;
+        int batchTimeout;
         String url;
         String eventsPath;
         Boolean msgsLimit;
         Boolean debug;
+        Boolean asyncSend;
+        Boolean bytesMessages;
+        int queueSize;
+        String overflow;
+        String spillPath;
+        String journalPath;
 
         if (publisher != null) {
             return;
@@ -92,8 +106,19 @@ public enum EventPublisher {
         url = PreferencesManager.INSTANCE.getPublisherURL();
         eventsPath = PreferencesManager.INSTANCE.getPublisherEventsFilePath();
         debug = PreferencesManager.INSTANCE.getPublisherDebugMode();
-
-        queue = new Queue<PublicationJob>();
+        batchSize = PreferencesManager.INSTANCE.getPublisherBatchSize();
+        batchTimeout = PreferencesManager.INSTANCE.getPublisherBatchTimeout();
+        asyncSend = PreferencesManager.INSTANCE.getPublisherAsyncSend();
+        bytesMessages = PreferencesManager.INSTANCE.getPublisherBytesMessages();
+        queueSize = PreferencesManager.INSTANCE.getPublisherQueueSize();
+        overflow = PreferencesManager.INSTANCE.getPublisherQueueOverflow();
+        spillPath = PreferencesManager.INSTANCE.getPublisherSpillPath();
+        journalPath = PreferencesManager.INSTANCE.getPublisherJournalPath();
+
+        queue = new Queue<PublicationJob>(queueSize, toOverflow(overflow),
+                spillPath == null ? null : new File(spillPath),
+                journalPath == null ? null : createJournal(journalPath));
+        Metrics.INSTANCE.registerQueue("publication", queue);
 
         publisher = new Publisher(queue, url, maxMsgs);
 
@@ -105,6 +130,18 @@ public enum EventPublisher {
             publisher.enableDebugMode();
         }
 
+        if (batchSize > 1) {
+            publisher.enableBatchMode(batchSize, batchTimeout);
+        }
+
+        if (asyncSend) {
+            publisher.enableAsyncSend();
+        }
+
+        if (bytesMessages) {
+            publisher.enableBytesMessages();
+        }
+
         publisher.start();
     }
 
@@ -117,63 +154,184 @@ public enum EventPublisher {
         }
     }
 
+    /**
+     * Puts back on the queue the events that were not published before
+     * the last restart, when the queue is backed by a journal. Sources
+     * are moved forward to the last of these events, so they are not
+     * generated again. Must be called after the sources are imported
+     * and before any event is generated.
+     */
+    public void recover() {
+        List<PublicationJob> jobs = queue.recover();
+
+        for (PublicationJob job : jobs) {
+            advanceSource(job.getEvent());
+        }
+
+        if (!jobs.isEmpty()) {
+            logger.info(jobs.size() + " events recovered from journal");
+        }
+    }
+
+    /**
+     * Queues the event to be published. When the queue is full, the
+     * call waits until there is room, unless the queue is set to spill
+     * or to reject events.
+     */
     public void publish(Event event) {
         PublicationJob job = new PublicationJob(event);
 
         try {
-            queue.put(job);
+            if (!queue.put(job)) {
+                logger.error("Publication queue is full. Event "
+                        + event.getEventID() + " from "
+                        + event.getSourceURI() + " rejected.");
+                Metrics.INSTANCE.error(event.getSourceURI());
+            }
         } catch (InterruptedException e) {
             logger.error("Unexpected error in event jobs queue", e);
         }
     }
 
-    private void setExport(String eventsPath) {
-        boolean success;
-        File dir;
-
-        dir = new File(eventsPath);
+    private static Journal<PublicationJob> createJournal(String path) {
+        try {
+            return new Journal<PublicationJob>(new File(path), "publication",
+                    PreferencesManager.INSTANCE
+                            .getPublisherJournalSegmentSize(),
+                    PreferencesManager.INSTANCE.getPublisherJournalSync());
+        } catch (IOException e) {
+            logger.error("Error opening publication journal on " + path
+                    + ". Journal disabled.", e);
+            return null;
+        }
+    }
 
-        if (dir.exists()) {
-            publisher.enableExportToFiles(eventsPath);
-        } else {
-            success = dir.mkdirs();
+    /*
+     * Moves the source of the event forward to the event. Returns the
+     * source or null when it could not be updated.
+     */
+    private static StructuredKnowledgeSource advanceSource(Event event) {
+        try {
+            StructuredKnowledgeSource source = SourcesManager.INSTANCE
+                    .getSource(event.getSourceURI());
+            Date date = Database.stringToDate(event.getEventDate());
 
-            if (success) {
-                publisher.enableExportToFiles(eventsPath);
+            if (event.getEventKey() != Event.NO_KEY) {
+                source.setWatermark(date, event.getEventKey());
             } else {
-                String msg = String
-                        .format("Error creating events path %s. Export to files disabled.",
-                                eventsPath);
-                logger.error(msg);
-                publisher.disableExportToFiles();
+                source.setDate(date);
             }
+
+            return source;
+        } catch (SourcesManagerError e) {
+            logger.error("Updating source", e);
+        } catch (ParseException e) {
+            logger.error("Updating source", e);
+        }
+
+        return null;
+    }
+
+    private static Queue.Overflow toOverflow(String value) {
+        if (value.equals(PreferencesManager.OVERFLOW_BLOCK)) {
+            return Queue.Overflow.BLOCK;
+        } else if (value.equals(PreferencesManager.OVERFLOW_REJECT)) {
+            return Queue.Overflow.REJECT;
+        } else if (value.equals(PreferencesManager.OVERFLOW_SPILL)) {
+            return Queue.Overflow.SPILL;
+        } else {
+            logger.error("Invalid queue overflow policy " + value
+                    + ". Using " + PreferencesManager.OVERFLOW_BLOCK + ".");
+            return Queue.Overflow.BLOCK;
+        }
+    }
+
+    private void setExport(String eventsPath) {
+        final EventArchive archive;
+
+        try {
+            archive = new EventArchive(new File(eventsPath),
+                    PreferencesManager.INSTANCE
+                            .getPublisherArchiveSegmentSize(),
+                    PreferencesManager.INSTANCE
+                            .getPublisherArchiveSegmentTime(),
+                    PreferencesManager.INSTANCE.getPublisherArchiveCompress(),
+                    PreferencesManager.INSTANCE
+                            .getPublisherArchiveBlockSize());
+        } catch (IOException e) {
+            logger.error("Error opening events archive on " + eventsPath
+                    + ". Export to files disabled.", e);
+            publisher.disableExportToFiles();
+            return;
         }
+
+        /* Writes the pending block and catalogs the open segment */
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    logger.error("Error closing events archive", e);
+                }
+            }
+        });
+
+        publisher.enableExportToFiles(archive);
     }
 
     private class Publisher extends Thread {
         private static final int NO_LIMIT = -1;
 
+        /* Waits between attempts to deliver a batch that failed */
+        private static final long RETRY_DELAY = 1000;
+        private static final long MAX_RETRY_DELAY = 60000;
+
         private Context jndiContext;
         private TopicConnection topicConnection;
         private TopicSession topicSession;
         private Topic topicCommitNew;
         private Topic topicIssueNew;
         private Topic topicIssueUpdate;
+        private final HashMap<String, TopicPublisher> publishers;
         private final Queue<PublicationJob> queue;
         private final String url;
-        private String eventsPath;
+        private EventArchive archive;
         private boolean debug;
-        private boolean export;
+        private boolean asyncSend;
+        private boolean bytesMessages;
         private int limit;
         private int count;
 
+        /*
+         * Batch mode. Events are sent on a transacted session that is
+         * committed every batchSize events or batchTimeout ms.
+         */
+        private final ArrayList<PublicationJob> uncommitted;
+        private int batchSize;
+        private long batchTimeout;
+        private long batchStart;
+
+        /* Envelopes of the uncommitted events, archived once committed */
+        private final ArrayList<byte[]> unarchived;
+
+        /* Envelopes are encoded into this buffer, reused for each event */
+        private final EnvelopeWriter envelope;
+
         public Publisher(Queue<PublicationJob> queue, String url, int limit) {
             this.queue = queue;
             this.url = url;
-            this.export = false;
+            this.archive = null;
             this.debug = false;
             this.limit = limit;
             this.count = 0;
+            this.asyncSend = false;
+            this.bytesMessages = false;
+            this.batchSize = 1;
+            this.publishers = new HashMap<String, TopicPublisher>();
+            this.uncommitted = new ArrayList<PublicationJob>();
+            this.unarchived = new ArrayList<byte[]>();
+            this.envelope = new EnvelopeWriter();
         }
 
         @Override
@@ -193,14 +351,21 @@ public enum EventPublisher {
                 PublicationJob job;
 
                 try {
-                    job = queue.take();
+                    job = getNextJob();
                 } catch (InterruptedException e) {
                     logger.error("Unexpected error in jobs queue", e);
                     continue;
                 }
 
+                if (job == null) {
+                    /* Batch timeout expired */
+                    commit();
+                    continue;
+                }
+
                 if (limit == 0) {
                     logger.error("Message not send due to MAX MESSAGES limit reached");
+                    queue.ack(job);
                     continue;
                 }
 
@@ -212,30 +377,43 @@ public enum EventPublisher {
                     try {
                         sendEvent(event);
                     } catch (JMSException e) {
+                        if (isTransacted()) {
+                            /* The batch is delivered again by commit() */
+                            logger.error("Error sending event. Retrying "
+                                    + "its batch.", e);
+                            uncommitted.add(job);
+                            commit();
+                            continue;
+                        }
+
                         logger.error(
                                 "Unexpected error sending event. Ignoring it.",
                                 e);
+                        Metrics.INSTANCE.error(event.getSourceURI());
+                        queue.ack(job);
                         continue;
                     } catch (NamingException e) {
                         logger.error("JNDI API lookup failed. Ignoring event.",
                                 e);
+                        Metrics.INSTANCE.error(event.getSourceURI());
+                        queue.ack(job);
                         continue;
                     }
                 }
 
-                try {
-                    StructuredKnowledgeSource source = SourcesManager.INSTANCE
-                            .getSource(event.getSourceURI());
-                    Date date = Database.stringToDate(event.getEventDate());
-
-                    source.setDate(date);
-                    PreferencesManager.INSTANCE.updateSource(source);
-                } catch (SourcesManagerError e) {
-                    logger.error("Updating source", e);
-                } catch (ParseException e) {
-                    logger.error("Updating source", e);
-                } catch (PreferencesError e) {
-                    logger.error("Updating source", e);
+                if (isTransacted()) {
+                    if (uncommitted.isEmpty()) {
+                        batchStart = System.currentTimeMillis();
+                    }
+
+                    uncommitted.add(job);
+
+                    if (uncommitted.size() >= batchSize) {
+                        commit();
+                    }
+                } else {
+                    updateSource(event);
+                    queue.ack(job);
                 }
             }
         }
@@ -248,13 +426,176 @@ public enum EventPublisher {
             this.debug = false;
         }
 
-        public void enableExportToFiles(String eventsPath) {
-            this.export = true;
-            this.eventsPath = eventsPath;
+        public void enableExportToFiles(EventArchive archive) {
+            this.archive = archive;
         }
 
         public void disableExportToFiles() {
-            this.export = false;
+            this.archive = null;
+        }
+
+        public void enableBatchMode(int batchSize, long batchTimeout) {
+            this.batchSize = batchSize;
+            this.batchTimeout = batchTimeout;
+        }
+
+        public void enableAsyncSend() {
+            this.asyncSend = true;
+        }
+
+        public void enableBytesMessages() {
+            this.bytesMessages = true;
+        }
+
+        private boolean isTransacted() {
+            return !debug && (batchSize > 1);
+        }
+
+        /*
+         * Returns the next job. When a batch is open, waits only until
+         * its timeout expires, returning null in that case.
+         */
+        private PublicationJob getNextJob() throws InterruptedException {
+            long remaining;
+
+            if (uncommitted.isEmpty()) {
+                return queue.take();
+            }
+
+            remaining = batchStart + batchTimeout - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return null;
+            }
+
+            return queue.poll(remaining, TimeUnit.MILLISECONDS);
+        }
+
+        /*
+         * Commits the batch. When the commit fails, the batch is sent
+         * again on a new connection, waiting more time after each
+         * failed attempt, until it is delivered. Jobs are acknowledged
+         * only once their events are delivered.
+         */
+        private void commit() {
+            int n = uncommitted.size();
+            long wait = RETRY_DELAY;
+            boolean sent = true;
+
+            if (n == 0) {
+                return;
+            }
+
+            while (true) {
+                if (sent) {
+                    try {
+                        topicSession.commit();
+                        break;
+                    } catch (JMSException e) {
+                        logger.error("Error committing " + n
+                                + " events. Retrying them in " + wait
+                                + " ms.", e);
+                        rollback();
+                    }
+                }
+
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    logger.error("Unexpected error waiting to retry events",
+                            e);
+                }
+
+                wait = Math.min(wait * 2, MAX_RETRY_DELAY);
+                sent = resend();
+            }
+
+            logger.debug(n + " events committed");
+
+            /* Sources are updated only when their events are delivered */
+            for (PublicationJob job : uncommitted) {
+                updateSource(job.getEvent());
+            }
+
+            archiveCommitted();
+
+            for (PublicationJob job : uncommitted) {
+                queue.ack(job);
+            }
+
+            uncommitted.clear();
+            unarchived.clear();
+        }
+
+        private void rollback() {
+            try {
+                topicSession.rollback();
+            } catch (JMSException e) {
+                logger.error("Error rolling back events", e);
+            }
+        }
+
+        /*
+         * Sends the events of the batch again on a new connection.
+         * Returns false when they could not be sent.
+         */
+        private boolean resend() {
+            unarchived.clear();
+            publishers.clear();
+
+            try {
+                topicConnection.close();
+            } catch (JMSException e) {
+                logger.debug("Error closing broker connection", e);
+            }
+
+            try {
+                setUp();
+
+                for (PublicationJob job : uncommitted) {
+                    ++count;
+                    publish(job.getEvent(), Integer.toString(count));
+                }
+
+                return true;
+            } catch (JMSException e) {
+                logger.error("Error sending " + uncommitted.size()
+                        + " events again", e);
+            } catch (NamingException e) {
+                logger.error("Error sending " + uncommitted.size()
+                        + " events again", e);
+            }
+
+            return false;
+        }
+
+        private void archiveCommitted() {
+            if (archive == null) {
+                return;
+            }
+
+            try {
+                for (int i = 0; i < unarchived.size(); i++) {
+                    byte[] message = unarchived.get(i);
+
+                    archive.append(uncommitted.get(i).getEvent(), message, 0,
+                            message.length);
+                }
+
+                if (queue.size() == 0) {
+                    archive.flush();
+                }
+            } catch (IOException e) {
+                logger.error("Error writing events to archive", e);
+            }
+        }
+
+        private void updateSource(Event event) {
+            StructuredKnowledgeSource source = advanceSource(event);
+
+            if (source != null) {
+                SourcesCheckpointer.INSTANCE.update(source);
+            }
         }
 
         private void setUp() throws JMSException, NamingException {
@@ -275,12 +616,17 @@ public enum EventPublisher {
             env.setProperty("topic." + EventFactory.EVENT_ITS_UPDATE,
                     EventFactory.EVENT_ITS_UPDATE);
 
+            if (asyncSend) {
+                /* Passed by ActiveMQ to its connection factory */
+                env.setProperty("useAsyncSend", "true");
+            }
+
             jndiContext = new InitialContext(env);
 
             topicConnectionFactory = (TopicConnectionFactory) jndiContext
                     .lookup("TopicConnectionFactory");
             topicConnection = topicConnectionFactory.createTopicConnection();
-            topicSession = topicConnection.createTopicSession(false,
+            topicSession = topicConnection.createTopicSession(isTransacted(),
                     Session.AUTO_ACKNOWLEDGE);
 
             topicCommitNew = (Topic) jndiContext
@@ -291,10 +637,17 @@ public enum EventPublisher {
                     .lookup(EventFactory.EVENT_ITS_UPDATE);
         }
 
-        private TopicPublisher createPublisher(String topicName)
+        private TopicPublisher getPublisher(String topicName)
                 throws JMSException, NamingException {
+            TopicPublisher topicPublisher;
             Topic topic;
 
+            topicPublisher = publishers.get(topicName);
+
+            if (topicPublisher != null) {
+                return topicPublisher;
+            }
+
             if (topicName.equals(EventFactory.EVENT_SCM_NEW)) {
                 topic = topicCommitNew;
             } else if (topicName.equals(EventFactory.EVENT_ITS_NEW)) {
@@ -305,66 +658,99 @@ public enum EventPublisher {
                 topic = null; // FIXME: raise exception
             }
 
-            return topicSession.createPublisher(topic);
+            topicPublisher = topicSession.createPublisher(topic);
+            publishers.put(topicName, topicPublisher);
+
+            return topicPublisher;
         }
 
         private void sendEvent(Event event) throws JMSException,
                 NamingException {
-            TopicPublisher topicPublisher;
-            TextMessage message;
-            String topicName;
-            String content;
+            String topicName = event.getEventName();
+            long start = System.nanoTime();
 
             ++count;
-            topicName = event.getEventName();
-            content = event.toMessage(Integer.toString(count));
-
-            topicPublisher = createPublisher(topicName);
-
-            message = topicSession.createTextMessage();
-            message.setText(content);
-            topicPublisher.publish(message);
+            publish(event, Integer.toString(count));
 
+            Metrics.INSTANCE.time(Metrics.STAGE_PUBLISH, start);
+            Metrics.INSTANCE.published(topicName);
             logger.info(topicName + " event sent. SeqNum: " + count);
 
             if (limit != NO_LIMIT) {
                 --limit;
             }
+        }
+
+        /*
+         * Publishes the event on the current session. In batch mode,
+         * its envelope is kept to be archived once the batch is
+         * committed.
+         */
+        private void publish(Event event, String seqNum) throws JMSException,
+                NamingException {
+            TopicPublisher topicPublisher;
+            Message message;
+            String topicName = event.getEventName();
+            /* Archived and sent envelopes must be the same */
+            long timestamp = System.currentTimeMillis();
+
+            /* Text messages do not need the encoded envelope */
+            if (bytesMessages || (archive != null)) {
+                envelope.write(event, seqNum, timestamp);
+            }
 
-            if (export) {
-                writeToFile(event.getEventDate(), event.getEventID(),
-                        event.getEventName(), content);
+            topicPublisher = getPublisher(topicName);
+
+            if (bytesMessages) {
+                BytesMessage bytesMessage = topicSession.createBytesMessage();
+                bytesMessage.writeBytes(envelope.getBuffer(), 0,
+                        envelope.size());
+                message = bytesMessage;
+            } else {
+                TextMessage textMessage = topicSession.createTextMessage();
+                textMessage.setText(event.toMessage(seqNum, timestamp));
+                message = textMessage;
+            }
+
+            topicPublisher.publish(message);
+
+            if (archive == null) {
+                return;
+            }
+
+            /* Batched events are archived once they are committed */
+            if (isTransacted()) {
+                unarchived.add(Arrays.copyOf(envelope.getBuffer(),
+                        envelope.size()));
+            } else {
+                archiveEvent(event, envelope.getBuffer(), envelope.size());
             }
         }
 
         private void sendFakeEvent(Event event) {
-            String content;
-
             ++count;
-            content = event.toMessage(Integer.toString(count));
+            envelope.write(event, Integer.toString(count));
+            Metrics.INSTANCE.published(event.getEventName());
 
             if (limit != NO_LIMIT) {
                 --limit;
             }
 
-            if (export) {
-                writeToFile(event.getEventDate(), event.getEventID(),
-                        event.getEventName(), content);
+            if (archive != null) {
+                archiveEvent(event, envelope.getBuffer(), envelope.size());
             }
         }
 
-        private void writeToFile(String date, String id, String name,
-                String content) {
-            String filename = eventsPath + date + "_" + id + "_" + name;
-
+        private void archiveEvent(Event event, byte[] message, int length) {
             try {
-                Writer writer = new OutputStreamWriter(new FileOutputStream(
-                        filename), "UTF-8");
-                BufferedWriter fout = new BufferedWriter(writer);
-                fout.write(content);
-                fout.close();
+                archive.append(event, message, 0, length);
+
+                /* Compressed blocks are not kept while the queue is idle */
+                if (queue.size() == 0) {
+                    archive.flush();
+                }
             } catch (IOException e) {
-                logger.error("Error writing event to file", e);
+                logger.error("Error writing event to archive", e);
             }
         }
 
@@ -21,10 +21,18 @@
 
 package eu.alertproject.kesi.publisher;
 
+import java.io.Serializable;
+
 import eu.alertproject.kesi.events.Event;
 import eu.alertproject.kesi.jobs.Job;
 
-public class PublicationJob implements Job {
+/**
+ * Event waiting to be published. Jobs are serializable, so they can be
+ * spilled to disk when the publication queue is full.
+ */
+public class PublicationJob implements Job, Serializable {
+    private static final long serialVersionUID = 1L;
+
     private static int id;
     private final Event event;
 
@@ -22,19 +22,31 @@
 package eu.alertproject.kesi.sources;
 
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
 import javax.mail.search.FlagTerm;
 
 import org.apache.log4j.Logger;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPFolder.ProtocolCommand;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
 import eu.alertproject.kesi.PreferencesManager;
 import eu.alertproject.kesi.extractors.ExtractionManager;
 import eu.alertproject.kesi.model.StructuredKnowledgeSource;
@@ -44,14 +56,21 @@ public class SensorHandler extends Thread {
     private static final String MAIL_PROTOCOL_KEY = "mail.store.protocol";
     private static final String IMAP_CONN_TIMEOUT_KEY = "mail.imap.connectiontimeout";
     private static final String IMAP_TIMEOUT_KEY = "mail.imap.timeout";
+    private static final String IMAPS_CONN_TIMEOUT_KEY = "mail.imaps.connectiontimeout";
+    private static final String IMAPS_TIMEOUT_KEY = "mail.imaps.timeout";
+
+    private static final String IDLE_CAPABILITY = "IDLE";
 
     /*
      * Patterns for checking whether an event is received from SCM or
      * ITS repositories
      */
-    private static final String BUGZILLA_PATTERN = "\\[Bug ([0-9]+)\\] .+";
-    private static final String JIRA_PATTERN = "\\[JIRA\\] \\[(.+)\\] \\((.+)\\-[0-9]+\\).*";
-    private static final String SCM_PATTERN = "\\[SCM\\] \\[(.+)\\].*";
+    private static final Pattern BUGZILLA_PATTERN = Pattern
+            .compile("\\[Bug ([0-9]+)\\] .+");
+    private static final Pattern JIRA_PATTERN = Pattern
+            .compile("\\[JIRA\\] \\[(.+)\\] \\((.+)\\-[0-9]+\\).*");
+    private static final Pattern SCM_PATTERN = Pattern
+            .compile("\\[SCM\\] \\[(.+)\\].*");
 
     /*
      * Bugzilla headers
@@ -59,79 +78,220 @@ public class SensorHandler extends Thread {
     private static final String BUGZILLA_URL_HEADER = "X-Bugzilla-URL";
     private static final String BUGZILLA_PRODUCT_HEADER = "X-Bugzilla-Product";
 
+    /* Sent to end the IDLE command running on a folder */
+    private static final ProtocolCommand NOOP_COMMAND = new ProtocolCommand() {
+        @Override
+        public Object doCommand(IMAPProtocol protocol)
+                throws ProtocolException {
+            protocol.noop();
+            return null;
+        }
+    };
+
     static Logger logger = Logger.getLogger(SensorHandler.class);
 
     public SensorHandler() {
     }
 
+    /**
+     * Listens for new messages until the thread is interrupted. When
+     * the server supports it, the folder is watched with IMAP IDLE, so
+     * messages are handled as soon as they arrive; otherwise, it is
+     * polled every sensor/polling ms. Lost connections are opened
+     * again, waiting more time after each failed attempt.
+     */
     @Override
     public void run() {
-        Store store;
+        int delay = PreferencesManager.INSTANCE.getSensorReconnectDelay();
+        int maxDelay = PreferencesManager.INSTANCE
+                .getSensorMaxReconnectDelay();
+        int wait = delay;
 
-        try {
-            store = connect();
-        } catch (MessagingException e) {
-            logger.error("Unable to connect with sensor's provider");
-            throw new RuntimeException(e);
+        while (true) {
+            Store store = null;
+
+            try {
+                Folder folder;
+
+                store = connect();
+                folder = store.getFolder(PreferencesManager.INSTANCE
+                        .getSensorEmailFolder());
+                folder.open(Folder.READ_WRITE);
+
+                /* Connected, so the next failure starts waiting again */
+                wait = delay;
+
+                if (supportsIdle(store)) {
+                    listen((IMAPFolder) folder);
+                } else {
+                    poll(folder);
+                }
+            } catch (MessagingException e) {
+                logger.error("Error in sensor's provider connection. "
+                        + "Reconnecting in " + wait + " ms.", e);
+            } catch (InterruptedException e) {
+                logger.info("Sensor interrupted");
+                return;
+            } finally {
+                close(store);
+            }
+
+            try {
+                sleep(wait);
+            } catch (InterruptedException e) {
+                logger.info("Sensor interrupted");
+                return;
+            }
+
+            wait = (int) Math.min((long) wait * 2, maxDelay);
         }
+    }
 
-        try {
-            int wait;
-            Folder folder;
+    private boolean supportsIdle(Store store) throws MessagingException {
+        if (!PreferencesManager.INSTANCE.getSensorIdle()) {
+            return false;
+        }
+
+        if (store instanceof IMAPStore
+                && ((IMAPStore) store).hasCapability(IDLE_CAPABILITY)) {
+            return true;
+        }
+
+        logger.info("Server does not support IDLE. Polling for messages.");
+        return false;
+    }
+
+    /*
+     * Waits for messages with IDLE. New messages are notified to the
+     * listener, which aborts the IDLE command running any other one, so
+     * idle() returns and the messages are handled. Servers end idle
+     * connections after 30 minutes, so the command is also restarted
+     * every sensor/idleRefresh ms.
+     */
+    private void listen(final IMAPFolder folder) throws MessagingException,
+            InterruptedException {
+        Timer refresher = new Timer("SensorHandler-idle", true);
+        int refresh = PreferencesManager.INSTANCE.getSensorIdleRefresh();
+        MessageCountListener listener = new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(MessageCountEvent e) {
+                abortIdle(folder);
+            }
+        };
 
-            folder = store.getFolder(PreferencesManager.INSTANCE
-                    .getSensorEmailFolder());
-            folder.open(Folder.READ_WRITE);
+        refresher.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                abortIdle(folder);
+            }
+        }, refresh, refresh);
 
-            wait = PreferencesManager.INSTANCE.getSensorPollInterval();
+        folder.addMessageCountListener(listener);
 
+        logger.info("Waiting for new messages with IDLE");
+
+        try {
             while (true) {
-                String url;
-                int nmsg;
+                int count = folder.getMessageCount();
+
+                handleMessages(folder);
 
                 /*
-                 * Due to a weird behavior we need to get first the
-                 * total number of messages and after that, we can
-                 * retrieve the real number of new or unread messages.
+                 * Messages reported while they were handled are not
+                 * reported again once IDLE starts
                  */
-                folder.getMessageCount();
-                nmsg = folder.getNewMessageCount()
-                        + folder.getUnreadMessageCount();
-
-                if (nmsg == 0) {
-                    logger.info("No messages. Waiting for new messages.");
-                    sleep(wait);
+                if (folder.getMessageCount() > count) {
                     continue;
                 }
 
-                logger.info(nmsg + " new messages. Handling...");
+                folder.idle();
+
+                if (isInterrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            refresher.cancel();
+            folder.removeMessageCountListener(listener);
+        }
+    }
+
+    private static void abortIdle(IMAPFolder folder) {
+        try {
+            /*
+             * Any command ends the current IDLE. getMessageCount() is
+             * not enough, as it only sends a command when the
+             * connection has not been used for a while.
+             */
+            folder.doCommand(NOOP_COMMAND);
+        } catch (MessagingException e) {
+            logger.debug("Error aborting IDLE command", e);
+        }
+    }
 
-                Message messages[] = folder.search(new FlagTerm(new Flags(
-                        Flags.Flag.SEEN), false));
+    private void poll(Folder folder) throws MessagingException,
+            InterruptedException {
+        int wait = PreferencesManager.INSTANCE.getSensorPollInterval();
 
-                for (Message message : messages) {
-                    try {
-                        url = parseURLFromMessage(message);
-                        scheduleExtraction(url);
-                    } catch (SensorHandlerError e) {
-                        logger.error(e);
-                        logger.error("Ignoring message.");
-                    } catch (SourcesManagerError e) {
-                        logger.error(e);
-                    }
+        while (true) {
+            if (handleMessages(folder) == 0) {
+                logger.info("No messages. Waiting for new messages.");
+            }
 
-                    message.setFlag(Flags.Flag.SEEN, true);
-                }
+            sleep(wait);
+        }
+    }
 
-                sleep(wait);
+    /*
+     * Schedules the extraction of the sources of the unread messages.
+     * Returns the number of messages handled.
+     */
+    private int handleMessages(Folder folder) throws MessagingException {
+        Message messages[];
+        FetchProfile profile;
+        String url;
+
+        /*
+         * Due to a weird behavior we need to get first the total number
+         * of messages, so the new ones are found by the search.
+         */
+        folder.getMessageCount();
+
+        messages = folder.search(new FlagTerm(new Flags(Flags.Flag.SEEN),
+                false));
+
+        if (messages.length == 0) {
+            return 0;
+        }
+
+        logger.info(messages.length + " new messages. Handling...");
+
+        /* Subjects and headers of all the messages in one request */
+        profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(BUGZILLA_URL_HEADER);
+        profile.add(BUGZILLA_PRODUCT_HEADER);
+        folder.fetch(messages, profile);
+
+        for (Message message : messages) {
+            try {
+                url = parseURLFromMessage(message);
+                scheduleExtraction(url);
+            } catch (SensorHandlerError e) {
+                logger.error(e);
+                logger.error("Ignoring message.");
+            } catch (SourcesManagerError e) {
+                logger.error(e);
+            } catch (RuntimeException e) {
+                /* A broken message must not stop the sensor */
+                logger.error("Unexpected error handling message "
+                        + message.getMessageNumber() + ". Ignoring it.", e);
             }
-        } catch (MessagingException e) {
-            logger.error("Error in sensor's provider connection");
-            throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            logger.error("Unexpected error in sensor thread");
-            throw new RuntimeException(e);
         }
+
+        folder.setFlags(messages, new Flags(Flags.Flag.SEEN), true);
+
+        return messages.length;
     }
 
     private Store connect() throws MessagingException {
@@ -139,50 +299,89 @@ public class SensorHandler extends Thread {
         String username;
         String password;
         String host;
+        int port;
         Session session;
         Store store;
+        int timeout;
+
+        timeout = PreferencesManager.INSTANCE.getSensorTimeout();
+
+        if (PreferencesManager.INSTANCE.getSensorIdle()) {
+            /* Reads wait for the server while the IDLE command runs */
+            timeout += PreferencesManager.INSTANCE.getSensorIdleRefresh();
+        }
 
         props = new Properties();
         props.put(MAIL_PROTOCOL_KEY,
                 PreferencesManager.INSTANCE.getSensorProtocol());
         props.put(IMAP_CONN_TIMEOUT_KEY,
                 PreferencesManager.INSTANCE.getSensorTimeout());
-        props.put(IMAP_TIMEOUT_KEY,
+        props.put(IMAP_TIMEOUT_KEY, timeout);
+        props.put(IMAPS_CONN_TIMEOUT_KEY,
                 PreferencesManager.INSTANCE.getSensorTimeout());
+        props.put(IMAPS_TIMEOUT_KEY, timeout);
 
         username = PreferencesManager.INSTANCE.getSensorUser();
         password = PreferencesManager.INSTANCE.getSensorPassword();
         host = PreferencesManager.INSTANCE.getSensorHost();
+        port = PreferencesManager.INSTANCE.getSensorPort();
 
-        session = Session.getDefaultInstance(props, null);
-        store = session.getStore("imaps");
-        store.connect(host, username, password);
+        /* A new session, so properties are read again on reconnections */
+        session = Session.getInstance(props, null);
+        store = session.getStore(PreferencesManager.INSTANCE
+                .getSensorProtocol());
+        store.connect(host, port, username, password);
 
         return store;
     }
 
+    private void close(Store store) {
+        if (store == null) {
+            return;
+        }
+
+        try {
+            store.close();
+        } catch (MessagingException e) {
+            logger.debug("Error closing sensor's provider connection", e);
+        }
+    }
+
     private String parseURLFromMessage(Message message)
             throws SensorHandlerError {
         try {
             String subject;
-            Pattern pattern;
             Matcher matcher;
             String url = null;
 
             subject = message.getSubject();
-            pattern = Pattern.compile(BUGZILLA_PATTERN);
-            matcher = pattern.matcher(subject);
+
+            if (subject == null) {
+                subject = "";
+            }
+
+            matcher = BUGZILLA_PATTERN.matcher(subject);
 
             if (matcher.find()) {
                 /* Extracts data from bugzilla mail */
-                String bugzillaURL = message.getHeader(BUGZILLA_URL_HEADER)[0];
-                String bugzillaProduct = message
-                        .getHeader(BUGZILLA_PRODUCT_HEADER)[0];
+                String[] bugzillaURL = message.getHeader(BUGZILLA_URL_HEADER);
+                String[] bugzillaProduct = message
+                        .getHeader(BUGZILLA_PRODUCT_HEADER);
+
+                if (bugzillaURL == null || bugzillaURL.length == 0
+                        || bugzillaProduct == null
+                        || bugzillaProduct.length == 0) {
+                    String msg = "Bugzilla message "
+                            + message.getMessageNumber() + " without "
+                            + BUGZILLA_URL_HEADER + " or "
+                            + BUGZILLA_PRODUCT_HEADER + " headers.";
+                    throw new SensorHandlerError(msg);
+                }
 
-                url = bugzillaURL + "buglist.cgi?product=" + bugzillaProduct;
+                url = bugzillaURL[0] + "buglist.cgi?product="
+                        + bugzillaProduct[0];
             } else {
-                pattern = Pattern.compile(JIRA_PATTERN);
-                matcher = pattern.matcher(subject);
+                matcher = JIRA_PATTERN.matcher(subject);
 
                 if (matcher.find()) {
                     String jiraURL = matcher.group(1);
@@ -190,8 +389,7 @@ public class SensorHandler extends Thread {
 
                     url = jiraURL + "/browse/" + jiraProject;
                 } else {
-                    pattern = Pattern.compile(SCM_PATTERN);
-                    matcher = pattern.matcher(subject);
+                    matcher = SCM_PATTERN.matcher(subject);
 
                     if (matcher.find()) {
                         /* Extracts data from SCMs */
@@ -219,8 +417,12 @@ public class SensorHandler extends Thread {
     private void scheduleExtraction(String url) throws SourcesManagerError {
         StructuredKnowledgeSource source = SourcesManager.INSTANCE
                 .getSource(url);
-        ExtractionManager.INSTANCE.extract(source);
-        logger.info("New source scheduled");
+
+        if (ExtractionManager.INSTANCE.request(source)) {
+            logger.info("Extraction of source requested");
+        } else {
+            logger.warn("Extraction of source " + url + " not requested");
+        }
     }
 
 }
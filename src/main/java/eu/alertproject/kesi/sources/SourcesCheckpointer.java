@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+package eu.alertproject.kesi.sources;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import eu.alertproject.kesi.PreferencesError;
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.metrics.Metrics;
+import eu.alertproject.kesi.model.StructuredKnowledgeSource;
+
+/**
+ * Writes the last sent date of the sources to the preferences backing
+ * store. Updates are kept in memory, merged per source, and written
+ * together every few seconds or after a number of updates, instead of
+ * syncing the backing store for every published event.
+ *
+ * After a crash, sources resume from the last written date, so the
+ * events published since then are sent again but none is lost. Pending
+ * updates are also written when the JVM shuts down.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum SourcesCheckpointer {
+    INSTANCE;
+
+    private static Logger logger = Logger.getLogger(SourcesCheckpointer.class);
+
+    /* Sources with unsaved dates, indexed by URI */
+    private final LinkedHashMap<String, StructuredKnowledgeSource> dirty = new LinkedHashMap<String, StructuredKnowledgeSource>();
+    private int updates = 0;
+    private int maxUpdates;
+    private long interval;
+
+    /* Only one flush is written at the same time */
+    private final Object flushLock = new Object();
+
+    private Checkpointer checkpointer;
+
+    public void start() {
+        if (checkpointer != null) {
+            logger.error("Sources checkpointer is already running");
+            return;
+        }
+
+        interval = Math.max(1,
+                PreferencesManager.INSTANCE.getSourcesCheckpointInterval());
+        maxUpdates = Math.max(1,
+                PreferencesManager.INSTANCE.getSourcesCheckpointEvents());
+
+        checkpointer = new Checkpointer();
+        checkpointer.setName("SourcesCheckpointer");
+        checkpointer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    public void stop() {
+        if (checkpointer == null) {
+            logger.error("Sources checkpointer is not running");
+            return;
+        }
+
+        checkpointer.interrupt();
+
+        try {
+            checkpointer.join();
+        } catch (InterruptedException e) {
+            logger.error("Unexpected error stopping checkpointer thread", e);
+            throw new RuntimeException(e);
+        }
+
+        checkpointer = null;
+    }
+
+    /**
+     * Marks the date of the source as changed. The date will be
+     * written on the next checkpoint.
+     */
+    public synchronized void update(StructuredKnowledgeSource source) {
+        dirty.put(source.getURI().toASCIIString(), source);
+
+        if (++updates >= maxUpdates) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes the pending dates to the backing store.
+     */
+    public void flush() {
+        ArrayList<StructuredKnowledgeSource> srcs;
+        long start;
+
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+
+                srcs = new ArrayList<StructuredKnowledgeSource>(
+                        dirty.values());
+                dirty.clear();
+                updates = 0;
+            }
+
+            start = System.nanoTime();
+
+            try {
+                PreferencesManager.INSTANCE.updateSources(srcs);
+                logger.debug(srcs.size() + " sources checkpointed");
+            } catch (PreferencesError e) {
+                logger.error("Error checkpointing sources", e);
+                restore(srcs);
+            } finally {
+                Metrics.INSTANCE.time(Metrics.STAGE_CHECKPOINT, start);
+            }
+        }
+    }
+
+    /*
+     * Marks again as changed the sources that could not be written,
+     * unless they were updated in the meantime.
+     */
+    private synchronized void restore(
+            ArrayList<StructuredKnowledgeSource> srcs) {
+        for (StructuredKnowledgeSource source : srcs) {
+            String key = source.getURI().toASCIIString();
+
+            if (!dirty.containsKey(key)) {
+                dirty.put(key, source);
+            }
+        }
+    }
+
+    private synchronized void await() throws InterruptedException {
+        if (updates < maxUpdates) {
+            wait(interval);
+        }
+    }
+
+    private class Checkpointer extends Thread {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    await();
+                } catch (InterruptedException e) {
+                    flush();
+                    return;
+                }
+
+                flush();
+            }
+        }
+    }
+
+}
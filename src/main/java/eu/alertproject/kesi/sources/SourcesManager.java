@@ -26,6 +26,10 @@ import java.io.File;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 
@@ -59,6 +63,9 @@ public enum SourcesManager {
 
     private final HashMap<String, StructuredKnowledgeSource> sources = new HashMap<String, StructuredKnowledgeSource>();
 
+    /* Sources updated by downloadSources and not extracted yet */
+    private final HashSet<String> downloaded = new HashSet<String>();
+
     public void setUp() throws SourcesManagerError {
         boolean success;
         String srcPath = PreferencesManager.INSTANCE.getSourcesDownloadPath();
@@ -77,7 +84,6 @@ public enum SourcesManager {
         }
 
         importSources();
-        scheduleSources();
     }
 
     public void importSources() throws SourcesManagerError {
@@ -121,6 +127,10 @@ public enum SourcesManager {
         }
     }
 
+    public ArrayList<StructuredKnowledgeSource> getSources() {
+        return new ArrayList<StructuredKnowledgeSource>(sources.values());
+    }
+
     public ArrayList<StructuredKnowledgeSource> getSourcesSCM() {
         ArrayList<StructuredKnowledgeSource> repositories = new ArrayList<StructuredKnowledgeSource>();
 
@@ -155,11 +165,76 @@ public enum SourcesManager {
         }
     }
 
+    /**
+     * Downloads or updates the sources that will be extracted, running
+     * up to sources/downloadWorkers operations at the same time. Waits
+     * until all of them have finished. Errors are logged; the failed
+     * sources are downloaded again when they are extracted.
+     */
+    public void downloadSources() {
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        ExecutorService executor;
+        int workers;
+
+        for (StructuredKnowledgeSource source : sources.values()) {
+            final String uri = source.getURI().toASCIIString();
+
+            if (source.getSetup() == Job.PUBLISH
+                    || !source.getType().equals(GIT)) {
+                continue;
+            }
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        downloadSource(uri);
+                        synchronized (downloaded) {
+                            downloaded.add(uri);
+                        }
+                    } catch (SourcesManagerError e) {
+                        logger.error("Downloading source " + uri, e);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        workers = Math.max(1,
+                PreferencesManager.INSTANCE.getSourcesDownloadWorkers());
+        executor = Executors.newFixedThreadPool(Math.min(workers,
+                tasks.size()));
+
+        logger.info("Downloading " + tasks.size() + " sources");
+
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while downloading sources", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("Sources downloaded");
+    }
+
     public void downloadSource(String uri) throws SourcesManagerError {
         StructuredKnowledgeSource source = getSource(uri);
         String dir = getDownloadSourcePath(source);
         String type = source.getType();
 
+        synchronized (downloaded) {
+            /* Already updated by downloadSources */
+            if (downloaded.remove(uri)) {
+                return;
+            }
+        }
+
         if (type.equals(GIT)) {
             File file = new File(dir + "/" + ".git");
 
@@ -181,17 +256,46 @@ public enum SourcesManager {
                 + source.getId();
     }
 
+    /*
+     * Git repositories are cloned without working tree: the repository
+     * is a bare clone stored on the .git directory of the source path.
+     * Tools keep finding a git repository there, but updating it does
+     * not need to checkout any file.
+     */
     private void cloneSource(String uri, String type, String dir)
             throws SourcesManagerError {
         if (type.equals(GIT)) {
             int result;
+            ArrayList<String> cmd = new ArrayList<String>();
+            String gitDir = dir + "/" + ".git";
+            CommandRunner tr = new CommandRunner(
+                    PreferencesManager.INSTANCE.getSourcesGitTimeout());
+
+            cmd.add(GIT);
+            cmd.add("clone");
+            cmd.add("--bare");
+
+            if (PreferencesManager.INSTANCE.getSourcesPartialClone()) {
+                /* Blobs are fetched when they are needed */
+                cmd.add("--filter=blob:none");
+            }
 
-            String[] cmd = { GIT, "clone", uri, dir };
-            CommandRunner tr = new CommandRunner();
+            cmd.add(uri);
+            cmd.add(gitDir);
 
-            result = tr.run(GIT, cmd, null);
+            result = tr.run(GIT, cmd.toArray(new String[cmd.size()]), null);
+
+            if (result == 0) {
+                /* Branches are updated by fetch as they are on origin */
+                String[] config = { GIT, "config", "remote.origin.fetch",
+                        "+refs/heads/*:refs/heads/*" };
+                result = tr.run(GIT, config, gitDir);
+            }
 
             if (result != 0) {
+                /* Partial clones would be taken as valid repositories */
+                delete(new File(dir));
+
                 String msg = String.format("Error clonning git repository %s",
                         uri);
                 throw new SourcesManagerError(msg);
@@ -205,14 +309,23 @@ public enum SourcesManager {
             throws SourcesManagerError {
         if (type.equals(GIT)) {
             int result;
+            String[] cmd;
+
+            if (new File(dir + "/" + ".git" + "/" + "index").exists()) {
+                /* Cloned with working tree by a previous version */
+                cmd = new String[] { GIT, "pull" };
+            } else {
+                cmd = new String[] { GIT, "fetch", "--prune", "--tags",
+                        "origin" };
+            }
 
-            String[] cmd = { GIT, "pull" };
-            CommandRunner tr = new CommandRunner();
+            CommandRunner tr = new CommandRunner(
+                    PreferencesManager.INSTANCE.getSourcesGitTimeout());
 
             result = tr.run(GIT, cmd, dir);
 
             if (result != 0) {
-                String msg = String.format("Error pulling git repository %s",
+                String msg = String.format("Error updating git repository %s",
                         uri);
                 throw new SourcesManagerError(msg);
             } else {
@@ -221,4 +334,18 @@ public enum SourcesManager {
         }
     }
 
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        if (file.exists() && !file.delete()) {
+            logger.error("Error deleting " + file.getPath());
+        }
+    }
+
 }
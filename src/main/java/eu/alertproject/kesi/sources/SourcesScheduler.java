@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.sources;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import eu.alertproject.kesi.PreferencesManager;
+import eu.alertproject.kesi.extractors.ExtractionManager;
+import eu.alertproject.kesi.jobs.Job;
+import eu.alertproject.kesi.model.StructuredKnowledgeSource;
+
+/**
+ * Extracts the sources periodically, so they are updated even when no
+ * notification is received for them.
+ *
+ * Each source is checked on its own interval, between
+ * sources/pollMinInterval and sources/pollMaxInterval ms. When a check
+ * finds that the source changed since the previous one, its interval
+ * is halved; otherwise it is doubled. Active sources are checked often
+ * while dormant ones back off. A change is a new date or id on the
+ * source, so events published after notifications also count.
+ *
+ * No more than sources/pollBudget checks run at the same time. Sources
+ * already waiting to be extracted are not checked again.
+ *
+ * Singleton implementation based on enum types. See Joshua Bloch's
+ * conference in the Google I/O 2008 <a href=
+ * "http://sites.google.com/site/io/effective-java-reloaded/effective_java_reloaded.pdf"
+ * ></a>
+ */
+public enum SourcesScheduler {
+    INSTANCE;
+
+    /* Maximum time between looks at the checks running */
+    private static final long TICK = 1000;
+
+    private static Logger logger = Logger.getLogger(SourcesScheduler.class);
+
+    /* Next checks, ordered by time */
+    private final PriorityQueue<Check> checks = new PriorityQueue<Check>();
+
+    /* Sources being checked, indexed by URI */
+    private final HashSet<String> running = new HashSet<String>();
+
+    private long minInterval;
+    private long maxInterval;
+    private int budget;
+
+    private Scheduler scheduler;
+
+    public void start() {
+        Random random = new Random();
+        long now;
+
+        if (scheduler != null) {
+            logger.error("Sources scheduler is already running");
+            return;
+        }
+
+        if (!PreferencesManager.INSTANCE.getSourcesPoll()) {
+            logger.info("Sources polling disabled");
+            return;
+        }
+
+        minInterval = Math.max(1000,
+                PreferencesManager.INSTANCE.getSourcesPollMinInterval());
+        maxInterval = Math.max(minInterval,
+                PreferencesManager.INSTANCE.getSourcesPollMaxInterval());
+        budget = Math.max(1, PreferencesManager.INSTANCE.getSourcesPollBudget());
+
+        now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (StructuredKnowledgeSource source : SourcesManager.INSTANCE
+                    .getSources()) {
+                if (source.getSetup() == Job.PUBLISH) {
+                    continue;
+                }
+
+                /* First checks are spread to avoid a burst of them */
+                checks.add(new Check(source, now + minInterval
+                        + (long) (random.nextDouble() * minInterval)));
+            }
+        }
+
+        scheduler = new Scheduler();
+        scheduler.setName("SourcesScheduler");
+        scheduler.setDaemon(true);
+        scheduler.start();
+
+        logger.debug(checks.size() + " sources scheduled. Budget: " + budget);
+    }
+
+    public void stop() {
+        if (scheduler == null) {
+            if (PreferencesManager.INSTANCE.getSourcesPoll()) {
+                logger.error("Sources scheduler is not running");
+            }
+            return;
+        }
+
+        scheduler.interrupt();
+
+        try {
+            scheduler.join();
+        } catch (InterruptedException e) {
+            logger.error("Unexpected error stopping scheduler thread", e);
+            throw new RuntimeException(e);
+        }
+
+        scheduler = null;
+    }
+
+    /*
+     * Starts the checks that are due, as long as the budget allows it.
+     * Returns the time to wait until the next one.
+     */
+    private synchronized long schedule() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<String> it = running.iterator(); it.hasNext();) {
+            if (!ExtractionManager.INSTANCE.isPending(it.next())) {
+                it.remove();
+            }
+        }
+
+        while (!checks.isEmpty() && checks.peek().next <= now) {
+            Check check = checks.peek();
+            String key = check.getKey();
+            boolean pending = ExtractionManager.INSTANCE.isPending(key);
+
+            if (!pending && running.size() >= budget) {
+                break;
+            }
+
+            checks.poll();
+            check.update();
+
+            if (!pending) {
+                logger.debug("Checking source " + key + ". Next check in "
+                        + check.interval + " ms.");
+                running.add(key);
+                ExtractionManager.INSTANCE.extract(check.source);
+            }
+
+            check.next = now + check.interval;
+            checks.add(check);
+        }
+
+        if (checks.isEmpty()) {
+            return maxInterval;
+        }
+
+        return Math.max(1, Math.min(TICK, checks.peek().next - now));
+    }
+
+    private class Check implements Comparable<Check> {
+        private final StructuredKnowledgeSource source;
+        private long interval;
+        private long next;
+
+        /* State of the source on the last check */
+        private Date date;
+        private int lastID;
+
+        public Check(StructuredKnowledgeSource source, long next) {
+            this.source = source;
+            this.interval = minInterval;
+            this.next = next;
+            StructuredKnowledgeSource.Watermark watermark = source
+                    .getWatermark();
+
+            this.date = watermark.getDate();
+            this.lastID = watermark.getLastID();
+        }
+
+        public String getKey() {
+            return source.getURI().toASCIIString();
+        }
+
+        /*
+         * Adapts the interval to whether the source changed since the
+         * last check.
+         */
+        public void update() {
+            StructuredKnowledgeSource.Watermark watermark = source
+                    .getWatermark();
+            Date currentDate = watermark.getDate();
+            int currentID = watermark.getLastID();
+            boolean changed = currentID != lastID
+                    || (currentDate == null ? date != null : !currentDate
+                            .equals(date));
+
+            if (changed) {
+                interval = Math.max(minInterval, interval / 2);
+            } else {
+                interval = Math.min(maxInterval, interval * 2);
+            }
+
+            date = currentDate;
+            lastID = currentID;
+        }
+
+        @Override
+        public int compareTo(Check other) {
+            return next < other.next ? -1 : (next > other.next ? 1 : 0);
+        }
+    }
+
+    private class Scheduler extends Thread {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(schedule());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
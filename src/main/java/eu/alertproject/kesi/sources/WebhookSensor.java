@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 GSyC/LibreSoft, Universidad Rey Juan Carlos
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * Authors: Santiago Dueñas <sduenas@libresoft.es>
+ *
+ */
+
+
+package eu.alertproject.kesi.sources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.alertproject.kesi.extractors.ExtractionManager;
+import eu.alertproject.kesi.model.StructuredKnowledgeSource;
+
+/**
+ * Receives notifications of updated sources over HTTP, so hooks of
+ * repositories and trackers can trigger extractions without going
+ * through the mail sensor.
+ *
+ * Notifications are POST requests to /notify with the URI of the source
+ * as the "uri" parameter, on the query string or on a body sent as
+ * application/x-www-form-urlencoded, or as the whole body of any other
+ * type. When a token is set, requests must send
+ * it on the X-KESI-Token header. Responses: 202 when the extraction is
+ * requested, 400 without URI, 403 with a wrong token, 404 for unknown
+ * sources, 405 for other methods, 413 for bodies larger than 8 KB and
+ * 503 when extractions are not running.
+ *
+ * $ curl -d uri=git://git.example.com/repo.git http://localhost:8090/notify
+ */
+public class WebhookSensor {
+    public static final String PATH = "/notify";
+    public static final String TOKEN_HEADER = "X-KESI-Token";
+
+    private static final String URI_PARAM = "uri";
+    private static final String ENCODING = "UTF-8";
+    private static final String FORM_TYPE = "application/x-www-form-urlencoded";
+
+    /* Larger bodies are not notifications */
+    private static final int MAX_BODY_SIZE = 8192;
+
+    private static final int WORKERS = 2;
+
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private static Logger logger = Logger.getLogger(WebhookSensor.class);
+
+    private final String host;
+    private final int port;
+    private final byte[] token;
+    private HttpServer server;
+    private ExecutorService executor;
+    private boolean running;
+
+    public WebhookSensor(String host, int port, String token) {
+        this.host = host;
+        this.port = port;
+        this.token = (token == null) ? null : getBytes(token);
+        this.running = false;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            logger.error("Webhook sensor is already running");
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WebhookSensor-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        /*
+         * Without TCP_NODELAY, Nagle's algorithm delays the responses
+         * about 40ms. Read by the server when its first instance is
+         * created.
+         */
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext(PATH, new NotifyHandler());
+        server.setExecutor(executor);
+        server.start();
+
+        running = true;
+
+        logger.info("Webhook sensor listening on " + host + ":" + getPort()
+                + PATH);
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            logger.error("Webhook sensor is not running");
+            return;
+        }
+
+        server.stop(0);
+        executor.shutdownNow();
+        running = false;
+
+        notifyAll();
+    }
+
+    /**
+     * Waits until the sensor is stopped.
+     */
+    public synchronized void join() throws InterruptedException {
+        while (running) {
+            wait();
+        }
+    }
+
+    /**
+     * Returns the port the sensor is listening on, useful when it was
+     * created with port 0.
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            return port;
+        }
+        return server.getAddress().getPort();
+    }
+
+    private class NotifyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String uri;
+
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    reply(exchange, 405, "Only POST requests are accepted");
+                    return;
+                }
+
+                if (!isValidToken(exchange.getRequestHeaders().getFirst(
+                        TOKEN_HEADER))) {
+                    logger.warn("Notification from "
+                            + exchange.getRemoteAddress()
+                            + " with invalid token");
+                    reply(exchange, 403, "Invalid token");
+                    return;
+                }
+
+                try {
+                    uri = parseURI(exchange);
+                } catch (BodyTooLargeError e) {
+                    reply(exchange, 413, "Body larger than " + MAX_BODY_SIZE
+                            + " bytes");
+                    return;
+                }
+
+                if (uri == null) {
+                    reply(exchange, 400, "Missing source URI");
+                    return;
+                }
+
+                try {
+                    StructuredKnowledgeSource source = SourcesManager.INSTANCE
+                            .getSource(uri);
+
+                    if (!ExtractionManager.INSTANCE.request(source)) {
+                        reply(exchange, 503, "Extractions are not running");
+                        return;
+                    }
+                } catch (SourcesManagerError e) {
+                    logger.error(e);
+                    reply(exchange, 404, e.getMessage());
+                    return;
+                }
+
+                logger.info("Extraction of source " + uri
+                        + " requested by webhook");
+                reply(exchange, 202, "Extraction requested");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /*
+         * Compares the tokens in constant time, so their contents can't
+         * be guessed from the time taken to reject them
+         */
+        private boolean isValidToken(String value) {
+            if (token == null) {
+                return true;
+            }
+
+            if (value == null) {
+                return false;
+            }
+
+            return MessageDigest.isEqual(token, getBytes(value));
+        }
+
+        /*
+         * Returns the URI of the source from the query string, the form
+         * or the body of the request
+         */
+        private String parseURI(HttpExchange exchange) throws IOException,
+                BodyTooLargeError {
+            String uri = getParam(exchange.getRequestURI().getRawQuery());
+            String body;
+
+            if (uri != null) {
+                return uri;
+            }
+
+            body = readBody(exchange.getRequestBody());
+
+            if (isForm(exchange.getRequestHeaders().getFirst(
+                    "Content-Type"))) {
+                return getParam(body);
+            }
+
+            body = body.trim();
+
+            return body.isEmpty() ? null : body;
+        }
+
+        /* The type may be followed by parameters such as the charset */
+        private boolean isForm(String contentType) {
+            if (contentType == null) {
+                return false;
+            }
+
+            return contentType.trim().toLowerCase(Locale.ENGLISH)
+                    .startsWith(FORM_TYPE);
+        }
+
+        private String getParam(String query)
+                throws UnsupportedEncodingException {
+            if (query == null) {
+                return null;
+            }
+
+            for (String param : query.split("&")) {
+                int i = param.indexOf('=');
+
+                if (i > 0 && param.substring(0, i).equals(URI_PARAM)) {
+                    String value = URLDecoder.decode(param.substring(i + 1),
+                            ENCODING).trim();
+                    return value.isEmpty() ? null : value;
+                }
+            }
+
+            return null;
+        }
+
+        private String readBody(InputStream in) throws IOException,
+                BodyTooLargeError {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+
+            while ((n = in.read(buf)) != -1) {
+                if (body.size() + n > MAX_BODY_SIZE) {
+                    throw new BodyTooLargeError();
+                }
+                body.write(buf, 0, n);
+            }
+
+            return body.toString(ENCODING);
+        }
+
+        private void reply(HttpExchange exchange, int code, String message)
+                throws IOException {
+            byte[] body = (message + "\n").getBytes(ENCODING);
+            OutputStream out;
+
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; charset=" + ENCODING);
+            exchange.sendResponseHeaders(code, body.length);
+
+            out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    /* Thrown when the body of a request is larger than MAX_BODY_SIZE */
+    private static class BodyTooLargeError extends Exception {
+    }
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}